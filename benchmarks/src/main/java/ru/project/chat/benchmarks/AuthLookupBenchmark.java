@@ -0,0 +1,166 @@
+package ru.project.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.project.chat.server.DatabaseAuthenticationProvider;
+import ru.project.chat.server.PasswordHasher;
+import ru.project.chat.server.UserCache;
+import ru.project.chat.server.WriteBehindJournal;
+import ru.project.chat.server.model.Role;
+import ru.project.chat.server.model.RoleName;
+import ru.project.chat.server.model.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Поиск пользователя в DatabaseAuthenticationProvider. Кэш заполняется в памяти, база не нужна:
+// при поиске провайдер к ней не обращается.
+// Пароли хранятся хэшами PBKDF2, как на сервере. Хэш с настоящим числом итераций считается сотни миллисекунд,
+// поэтому свой хэш есть только у LOGIN_KEYS пользователей, которые входят в бенчмарке, у остальных - общий.
+// Успешный вход этих пользователей уже проверен при подготовке и обслуживается из VerifiedCredentials,
+// как повторный вход на сервере; неверный пароль всегда проверяется PBKDF2
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthLookupBenchmark {
+    private static final int KEYS = 1024;
+    // пользователи, которые входят в бенчмарках входа
+    private static final int LOGIN_KEYS = 16;
+
+    @Param({"1000", "100000", "500000"})
+    private int users;
+
+    private DatabaseAuthenticationProvider provider;
+    private WriteBehindJournal journal;
+    private Path journalDirectory;
+    private final String[] logins = new String[KEYS];
+    private final String[] nicknames = new String[KEYS];
+    private final String[] loginUsers = new String[LOGIN_KEYS];
+    private final String[] loginPasswords = new String[LOGIN_KEYS];
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        UserCache cache = new UserCache();
+        Role role = new Role(2, RoleName.USER);
+        PasswordHasher hasher = new PasswordHasher(PasswordHasher.DEFAULT_ITERATIONS);
+        String sharedHash = hasher.hash("shared-password");
+        for (int i = 0; i < users; i++) {
+            cache.add(new User("login" + i, sharedHash, "nick" + i, role));
+        }
+        for (int i = 0; i < KEYS; i++) {
+            int index = ThreadLocalRandom.current().nextInt(users);
+            logins[i] = "login" + index;
+            nicknames[i] = "nick" + index;
+        }
+        for (int i = 0; i < LOGIN_KEYS; i++) {
+            int index = ThreadLocalRandom.current().nextInt(users);
+            loginUsers[i] = "login" + index;
+            loginPasswords[i] = "password" + index;
+            cache.getByLogin(loginUsers[i]).setPassword(hasher.hash(loginPasswords[i]));
+        }
+        journalDirectory = Files.createTempDirectory("auth-benchmark");
+        journal = new WriteBehindJournal(journalDirectory.resolve("journal"), 500, 1000, 1);
+        provider = new DatabaseAuthenticationProvider(cache, journal);
+        for (int i = 0; i < LOGIN_KEYS; i++) {
+            if (provider.getNicknameByLoginAndPassword(loginUsers[i], loginPasswords[i]) == null) {
+                throw new IllegalStateException("Пользователь " + loginUsers[i] + " не вошел");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close(1000);
+        try (var files = Files.list(journalDirectory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(journalDirectory);
+    }
+
+    private int nextKey() {
+        return next++ & (KEYS - 1);
+    }
+
+    // Повторный успешный вход: у каждого пользователя свой пароль, PBKDF2 уже проверен
+    @Benchmark
+    public String nicknameByLoginAndPassword() {
+        int key = nextKey() & (LOGIN_KEYS - 1);
+        return provider.getNicknameByLoginAndPassword(loginUsers[key], loginPasswords[key]);
+    }
+
+    // Неверный пароль: полная проверка PBKDF2
+    @Benchmark
+    public String wrongPassword() {
+        return provider.getNicknameByLoginAndPassword(logins[nextKey()], "wrong");
+    }
+
+    @Benchmark
+    public boolean isCurrentUserAdmin() {
+        return provider.isCurrentUserAdmin(nicknames[nextKey()]);
+    }
+
+    @Benchmark
+    public int roleMask() {
+        return provider.getRoleMask(nicknames[nextKey()]);
+    }
+
+    @Benchmark
+    public long banDeadline() {
+        return provider.getBanDeadline(nicknames[nextKey()]);
+    }
+
+    @Benchmark
+    public long minutesUntilTheEndBan() {
+        return provider.getMinutesUntilTheEndBan(nicknames[nextKey()]);
+    }
+
+    // Ограниченный кэш, как в режиме lazy: каждый поиск записывает обращение для порядка вытеснения.
+    // Ключи в нем те же, что и в основном состоянии, вытеснения при поиске нет
+    @State(Scope.Benchmark)
+    public static class BoundedCache {
+        private UserCache cache;
+        private String[] logins;
+
+        @Setup
+        public void setUp(AuthLookupBenchmark benchmark) {
+            cache = new UserCache(benchmark.users);
+            Role role = new Role(2, RoleName.USER);
+            for (int i = 0; i < benchmark.users; i++) {
+                cache.add(new User("login" + i, "hash", "nick" + i, role));
+            }
+            logins = benchmark.logins;
+        }
+    }
+
+    // у каждого потока свой номер ключа
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = ThreadLocalRandom.current().nextInt(KEYS);
+
+        int nextKey() {
+            return next++ & (KEYS - 1);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public User boundedCacheLookup(BoundedCache state, Cursor cursor) {
+        return state.cache.getByLogin(state.logins[cursor.nextKey()]);
+    }
+
+    // Поиск из нескольких потоков сразу, как при одновременных входах и командах: обращения не должны
+    // выстраиваться в очередь за общей блокировкой порядка вытеснения
+    @Benchmark
+    @Threads(4)
+    public User boundedCacheLookupContended(BoundedCache state, Cursor cursor) {
+        return state.cache.getByLogin(state.logins[cursor.nextKey()]);
+    }
+}
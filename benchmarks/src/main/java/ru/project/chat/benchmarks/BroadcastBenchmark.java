@@ -0,0 +1,51 @@
+package ru.project.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.project.chat.server.ClientHandler;
+import ru.project.chat.server.Frame;
+import ru.project.chat.server.Server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Рассылка одного сообщения всем клиентам: готовым кадром, строкой и командой клиента целиком
+// (разбор, время сообщения, рассылка)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final String MESSAGE = "Всем привет, это сообщение для замера рассылки";
+
+    @Param({"10", "100", "1000", "10000"})
+    private int clients;
+
+    private Server server;
+    private ClientHandler sender;
+    private Frame frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatFixture fixture = ChatFixture.withClients(clients);
+        server = fixture.getServer();
+        sender = fixture.getClient(0);
+        frame = Frame.of(MESSAGE);
+    }
+
+    @Benchmark
+    public void broadcastFrame() {
+        server.broadcastFrame(frame);
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        server.broadcastMessage(MESSAGE);
+    }
+
+    @Benchmark
+    public boolean broadcastCommand() throws IOException {
+        return sender.handleMessage(MESSAGE);
+    }
+}
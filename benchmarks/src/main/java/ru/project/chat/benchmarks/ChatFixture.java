@@ -0,0 +1,57 @@
+package ru.project.chat.benchmarks;
+
+import ru.project.chat.server.ClientHandler;
+import ru.project.chat.server.InMemoryAuthenticationProvider;
+import ru.project.chat.server.Server;
+import ru.project.chat.server.ServerConfig;
+
+import java.io.IOException;
+import java.util.Properties;
+
+// Сервер без сетевой части с заданным числом вошедших в чат клиентов user0..userN-1
+public final class ChatFixture {
+    private final Server server;
+    private final ClientHandler[] clients;
+
+    private ChatFixture(Server server, ClientHandler[] clients) {
+        this.server = server;
+        this.clients = clients;
+    }
+
+    private static final long REGISTER_TIMEOUT_MILLIS = 120_000;
+
+    public static ChatFixture withClients(int count) throws IOException {
+        // бенчмарки шлют команды от одного клиента без пауз, лимиты частоты их бы отклоняли
+        Properties overrides = new Properties();
+        overrides.setProperty("server.ratelimit.enabled", "false");
+        // все регистрации ставятся в очередь пула входа сразу, ни одна не должна быть отклонена
+        overrides.setProperty("server.auth.queue.capacity", String.valueOf(Math.max(count, 1)));
+        // замеряется рассылка, а не вход: хэш пароля с малым числом итераций
+        Server server = new Server(ServerConfig.load(overrides), new InMemoryAuthenticationProvider(1_000));
+        ClientHandler[] clients = new ClientHandler[count];
+        for (int i = 0; i < count; i++) {
+            clients[i] = new ClientHandler(new StubConnection(), server);
+            clients[i].handleMessage("/register user" + i + " user" + i + " password");
+        }
+        // регистрация выполняется в пуле входа сервера
+        long deadline = System.currentTimeMillis() + REGISTER_TIMEOUT_MILLIS;
+        for (int i = 0; i < count; i++) {
+            while (!clients[i].isAuthenticated()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Клиент user" + i + " не вошел за " + REGISTER_TIMEOUT_MILLIS
+                            + " мс, клиентов " + count + ", ожидают входа " + server.getAuthQueueDepth());
+                }
+                Thread.onSpinWait();
+            }
+        }
+        return new ChatFixture(server, clients);
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public ClientHandler getClient(int index) {
+        return clients[index];
+    }
+}
@@ -0,0 +1,88 @@
+package ru.project.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.project.chat.server.Command;
+import ru.project.chat.server.CommandMessage;
+import ru.project.chat.server.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Разбор входящего сообщения: текстовый и бинарный режим CommandMessage и,
+// для сравнения, прежний разбор через split и сборку текста /w обратно в строку
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+    private static final String RECIPIENT = "user42";
+    private static final String TEXT = "Привет, как дела? Это сообщение из нескольких слов для замера разбора";
+
+    private final CommandMessage commandMessage = new CommandMessage();
+    private final String broadcastText = TEXT;
+    private final String writeText = "/w " + RECIPIENT + " " + TEXT;
+    private byte[] writeBinary;
+    private byte[] writeFrame;
+
+    @Setup
+    public void setUp() throws IOException {
+        // тело текстового кадра без двух байт длины, как его получает ClientHandler.handleFrame
+        byte[] frame = new byte[Frame.of(writeText).size()];
+        Frame.of(writeText).buffer().get(frame);
+        writeFrame = Arrays.copyOfRange(frame, 2, frame.length);
+
+        byte[] recipient = RECIPIENT.getBytes(StandardCharsets.UTF_8);
+        byte[] text = TEXT.getBytes(StandardCharsets.UTF_8);
+        writeBinary = ByteBuffer.allocate(1 + 2 + recipient.length + 2 + text.length)
+                .put(Command.WRITE.getOpcode())
+                .putShort((short) recipient.length).put(recipient)
+                .putShort((short) text.length).put(text)
+                .array();
+    }
+
+    @Benchmark
+    public void textBroadcast(Blackhole blackhole) {
+        commandMessage.parseText(broadcastText);
+        blackhole.consume(commandMessage.getField(0));
+    }
+
+    @Benchmark
+    public void textWrite(Blackhole blackhole) {
+        commandMessage.parseText(writeText);
+        blackhole.consume(commandMessage.getField(0));
+        blackhole.consume(commandMessage.getField(1));
+    }
+
+    // текстовый режим целиком: декодирование кадра и разбор
+    @Benchmark
+    public void textFrameWrite(Blackhole blackhole) throws IOException {
+        commandMessage.parseText(Frame.decode(writeFrame, 0, writeFrame.length));
+        blackhole.consume(commandMessage.getField(0));
+        blackhole.consume(commandMessage.getField(1));
+    }
+
+    @Benchmark
+    public void binaryWrite(Blackhole blackhole) throws IOException {
+        commandMessage.parseBinary(writeBinary, 0, writeBinary.length);
+        blackhole.consume(commandMessage.getField(0));
+        blackhole.consume(commandMessage.getField(1));
+    }
+
+    @Benchmark
+    public void legacySplitWrite(Blackhole blackhole) {
+        String[] splitMessage = writeText.split(" ");
+        blackhole.consume(splitMessage[0]);
+        blackhole.consume(splitMessage[1]);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String string : Arrays.copyOfRange(splitMessage, 2, splitMessage.length)) {
+            stringBuilder.append(string).append(" ");
+        }
+        blackhole.consume(stringBuilder.toString());
+    }
+}
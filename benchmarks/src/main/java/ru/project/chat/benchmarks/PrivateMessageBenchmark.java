@@ -0,0 +1,49 @@
+package ru.project.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.project.chat.server.ClientHandler;
+import ru.project.chat.server.Server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Личное сообщение: доставка получателю и отправителю, и команда /w целиком
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivateMessageBenchmark {
+    private static final String MESSAGE = "Привет, это личное сообщение";
+
+    @Param({"10", "100", "1000", "10000"})
+    private int clients;
+
+    private Server server;
+    private ClientHandler sender;
+    private List<String> recipients;
+    private String command;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatFixture fixture = ChatFixture.withClients(clients);
+        server = fixture.getServer();
+        sender = fixture.getClient(0);
+        String recipient = fixture.getClient(clients / 2).getNickname();
+        recipients = Arrays.asList(recipient, sender.getNickname());
+        command = "/w " + recipient + " " + MESSAGE;
+    }
+
+    @Benchmark
+    public List<String> sendMessageToUser() {
+        return server.sendMessageToUser(recipients, MESSAGE);
+    }
+
+    @Benchmark
+    public boolean privateCommand() throws IOException {
+        return sender.handleMessage(command);
+    }
+}
@@ -0,0 +1,32 @@
+package ru.project.chat.benchmarks;
+
+import ru.project.chat.server.ClientConnection;
+import ru.project.chat.server.Frame;
+
+// Соединение без сокета: кадры только подсчитываются, поэтому замеряется работа сервера, а не сети
+public class StubConnection implements ClientConnection {
+    private long sentBytes;
+
+    @Override
+    public void send(Frame frame) {
+        sentBytes += frame.size();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return 0;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+}
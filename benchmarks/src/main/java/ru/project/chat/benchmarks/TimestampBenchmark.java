@@ -0,0 +1,42 @@
+package ru.project.chat.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.project.chat.server.MessageClock;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+// Время сообщения: как его раньше получал ClientHandler для каждого сообщения
+// (форматтер из шаблона и два чтения часов), с общим форматтером и из MessageClock, который форматирует раз в секунду
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    @Benchmark
+    public void perMessagePattern(Blackhole blackhole) {
+        LocalDateTime now = LocalDateTime.now();
+        blackhole.consume(now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+        blackhole.consume(LocalDateTime.now().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    }
+
+    @Benchmark
+    public void sharedFormatter(Blackhole blackhole) {
+        blackhole.consume(LocalDateTime.now().format(FORMATTER));
+        blackhole.consume(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public void messageClock(Blackhole blackhole) {
+        long now = System.currentTimeMillis();
+        blackhole.consume(MessageClock.timestamp(now));
+        blackhole.consume(now);
+    }
+}
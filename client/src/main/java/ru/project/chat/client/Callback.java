@@ -4,4 +4,9 @@ public interface Callback {
     void call(Object... args);
 
     void closeWindow();
+
+    // Сообщение не отправлено: слишком длинное, очередь отправки заполнена или соединение оборвалось.
+    // По умолчанию ничего не делает, чтобы реализации, написанные до появления метода, продолжали собираться
+    default void sendFailed(String reason) {
+    }
 }
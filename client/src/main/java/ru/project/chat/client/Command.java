@@ -0,0 +1,63 @@
+package ru.project.chat.client;
+
+// Коды команд бинарного протокола и число их полей, должны совпадать с ru.project.chat.server.Command
+public enum Command {
+    MESSAGE(0, null, 1, 1, true),
+    AUTH(1, "/auth", 2, 2, false),
+    REGISTER(2, "/register", 3, 3, false),
+    LIST(3, "/list", 0, 0, false),
+    WRITE(4, "/w", 2, 2, true),
+    CHANGE_NICK(5, "/changenick", 1, 1, false),
+    KICK(6, "/kick", 1, 1, false),
+    BAN(7, "/ban", 1, 2, false),
+    SHUTDOWN(8, "/shutdown", 0, 0, false),
+    EXIT(9, "/exit", 0, 0, false),
+    BINARY(10, "/binary", 0, 0, false),
+    STATS(11, "/stats", 0, 0, false),
+    JOIN(12, "/join", 1, 1, false),
+    LEAVE(13, "/leave", 0, 1, false),
+    ROOMS(14, "/rooms", 0, 0, false);
+
+    private final byte opcode;
+    private final String token;
+    private final int requiredFields;
+    private final int fields;
+    private final boolean lastFieldIsText;
+
+    Command(int opcode, String token, int requiredFields, int fields, boolean lastFieldIsText) {
+        this.opcode = (byte) opcode;
+        this.token = token;
+        this.requiredFields = requiredFields;
+        this.fields = fields;
+        this.lastFieldIsText = lastFieldIsText;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public int getRequiredFields() {
+        return requiredFields;
+    }
+
+    public int getFields() {
+        return fields;
+    }
+
+    public boolean isLastFieldText() {
+        return lastFieldIsText;
+    }
+
+    public static Command byToken(String token) {
+        for (Command command : values()) {
+            if (token.equals(command.token)) {
+                return command;
+            }
+        }
+        return null;
+    }
+}
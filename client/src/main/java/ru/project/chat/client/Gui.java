@@ -15,6 +15,8 @@ public class Gui extends JFrame {
 
     private Network network;
 
+    private final MessageRenderer renderer;
+
     public Gui(String title) throws HeadlessException, IOException {
         super(title);
         southPanel = new JPanel();
@@ -24,19 +26,20 @@ public class Gui extends JFrame {
         southPanel.add(inTextSendButton = new JButton("Send message"));
         Container cp = getContentPane();
         cp.setLayout(new BorderLayout());
-        cp.add(BorderLayout.CENTER, outTextArea = new JTextArea());
+        cp.add(BorderLayout.CENTER, new JScrollPane(outTextArea = new JTextArea()));
         outTextArea.setEditable(false);
+        // -Dchat.scrollback.messages - сколько последних сообщений остается в окне,
+        // -Dchat.render.interval.millis - как часто накопившиеся сообщения выводятся в окно
+        renderer = new MessageRenderer(outTextArea, Integer.getInteger("chat.scrollback.messages", 5000),
+                Integer.getInteger("chat.render.interval.millis", 50));
+        renderer.start();
         cp.add(BorderLayout.SOUTH, southPanel);
 
         inTextSendButton.addActionListener(event ->
                 {
-                    String text = inTextField.getText();
-                    try {
-                        network.sendMessage(text);
-                        inTextField.setText("");
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+                    // сообщение только ставится в очередь, ошибка отправки придет в Callback.sendFailed
+                    network.sendMessage(inTextField.getText());
+                    inTextField.setText("");
                 }
         );
 
@@ -57,11 +60,11 @@ public class Gui extends JFrame {
         setVisible(true);
         inTextField.requestFocus();
 
+        // -Dchat.binary=true включает бинарный протокол команд
         this.network = new Network(new Callback() {
             @Override
             public void call(Object... args) {
-                outTextArea.append((String) args[0]);
-                outTextArea.append("\n");
+                renderer.add((String) args[0]);
             }
 
             @Override
@@ -71,7 +74,12 @@ public class Gui extends JFrame {
                 dispose();
                 System.exit(0);
             }
-        });
+
+            @Override
+            public void sendFailed(String reason) {
+                renderer.add(reason);
+            }
+        }, Boolean.getBoolean("chat.binary"));
         network.connect(8080);
     }
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package ru.project.chat.client;
+
+import javax.swing.*;
+import java.util.ArrayDeque;
+
+// Вывод входящих сообщений в окно. Поток чтения сети только кладет сообщение в очередь, а таймер Swing
+// раз в intervalMillis забирает все накопившееся и добавляет в документ одной вставкой на EDT.
+// В окне остаются последние maxMessages сообщений: лишние удаляются из начала документа одним удалением
+// на пачку, а сообщения, которые все равно не остались бы в окне, выбрасываются еще в очереди.
+// Поэтому работа EDT в секунду не растет вместе с частотой сообщений
+public class MessageRenderer {
+    private final JTextArea textArea;
+    private final int maxMessages;
+    private final Timer timer;
+
+    // пишет поток чтения, забирает EDT; очереди меняются местами под блокировкой
+    private final Object lock = new Object();
+    private ArrayDeque<String> pending = new ArrayDeque<>();
+    private ArrayDeque<String> drained = new ArrayDeque<>();
+
+    // дальше только EDT: длины сообщений в документе (с переводом строки), кольцо из maxMessages
+    private final int[] lengths;
+    private int first;
+    private int count;
+    private final StringBuilder batch = new StringBuilder();
+
+    public MessageRenderer(JTextArea textArea, int maxMessages, int intervalMillis) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("В окне должно оставаться хотя бы одно сообщение: " + maxMessages);
+        }
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Интервал вывода сообщений должен быть больше нуля: " + intervalMillis);
+        }
+        this.textArea = textArea;
+        this.maxMessages = maxMessages;
+        this.lengths = new int[maxMessages];
+        this.timer = new Timer(intervalMillis, event -> render());
+    }
+
+    public void start() {
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    public void add(String message) {
+        synchronized (lock) {
+            if (pending.size() == maxMessages) {
+                pending.pollFirst();
+            }
+            pending.addLast(message);
+        }
+    }
+
+    private void render() {
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            ArrayDeque<String> messages = pending;
+            pending = drained;
+            drained = messages;
+        }
+        // в пачке не больше maxMessages, поэтому удалять приходится только то, что уже в документе
+        int removeChars = 0;
+        for (int overflow = count + drained.size() - maxMessages; overflow > 0; overflow--) {
+            removeChars += lengths[first];
+            first = (first + 1) % maxMessages;
+            count--;
+        }
+        String message;
+        while ((message = drained.pollFirst()) != null) {
+            batch.append(message).append('\n');
+            lengths[(first + count) % maxMessages] = message.length() + 1;
+            count++;
+        }
+        if (removeChars > 0) {
+            textArea.replaceRange(null, 0, removeChars);
+        }
+        textArea.append(batch.toString());
+        batch.setLength(0);
+        textArea.setCaretPosition(textArea.getDocument().getLength());
+    }
+}
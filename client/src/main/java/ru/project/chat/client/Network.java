@@ -2,13 +2,29 @@ package ru.project.chat.client;
 
 import lombok.extern.log4j.Log4j2;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+// Соединение с сервером. Отправка не блокирует вызывающий поток (в окне это EDT): сообщение кодируется
+// в кадр и кладется в очередь, а отдельный поток пишет в сокет все накопившееся и сбрасывает буфер один раз
+// на пачку. Ошибки отправки сообщаются через Callback.sendFailed
 @Log4j2
 public class Network implements AutoCloseable {
+    private static final int DRAIN_BATCH = 256;
+
     private Socket socket;
 
     private DataInputStream in;
@@ -16,14 +32,51 @@ public class Network implements AutoCloseable {
 
     private Callback callback;
 
+    // команды уходят на сервер в бинарном формате: opcode и поля с длиной, без разбора строки на сервере
+    private final boolean binaryProtocol;
+
+    private final ByteBuffer binaryBuffer = ByteBuffer.allocate(2 + 0xFFFF);
+
+    // кодирование текстового кадра в формате writeUTF
+    private final ByteArrayOutputStream textBytes = new ByteArrayOutputStream();
+    private final DataOutputStream textOut = new DataOutputStream(textBytes);
+
+    // -Dchat.send.queue.capacity - сколько сообщений может ждать отправки, пока сокет не принимает данные
+    private final BlockingQueue<byte[]> outbound =
+            new ArrayBlockingQueue<>(Integer.getInteger("chat.send.queue.capacity", 1000));
+
+    private Thread writer;
+
+    private volatile boolean closed;
+
     public Network(Callback callback) {
+        this(callback, false);
+    }
+
+    public Network(Callback callback, boolean binaryProtocol) {
         this.callback = callback;
+        this.binaryProtocol = binaryProtocol;
     }
 
     public void connect(int port) throws IOException {
         socket = new Socket("localhost", port);
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
+        // -Dchat.tcp.nodelay=false включает алгоритм Нейгла, -Dchat.socket.buffer.bytes задает буферы сокета
+        socket.setTcpNoDelay(Boolean.parseBoolean(System.getProperty("chat.tcp.nodelay", "true")));
+        int socketBuffer = Integer.getInteger("chat.socket.buffer.bytes", 0);
+        if (socketBuffer > 0) {
+            socket.setSendBufferSize(socketBuffer);
+            socket.setReceiveBufferSize(socketBuffer);
+        }
+        // сервер отправляет сообщения пачками, буфер позволяет разбирать пачку без системного вызова на каждое
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (binaryProtocol) {
+            out.writeUTF(Command.BINARY.getToken());
+            out.flush();
+        }
+        writer = new Thread(this::writeMessages, "chat-writer");
+        writer.setDaemon(true);
+        writer.start();
         new Thread(() -> {
             try {
                 while (true) {
@@ -41,8 +94,34 @@ public class Network implements AutoCloseable {
         }).start();
     }
 
+    private void writeMessages() {
+        List<byte[]> batch = new ArrayList<>(DRAIN_BATCH);
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch, DRAIN_BATCH - 1);
+                for (byte[] frame : batch) {
+                    out.write(frame);
+                }
+                batch.clear();
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                callback.sendFailed("Не удалось отправить сообщение: " + e.getMessage());
+                close();
+            }
+        } catch (InterruptedException e) {
+            // соединение закрыто
+        }
+    }
+
     @Override
     public void close() {
+        closed = true;
+        if (writer != null) {
+            writer.interrupt();
+        }
         try {
             if (in != null) {
                 in.close();
@@ -58,7 +137,96 @@ public class Network implements AutoCloseable {
         }
     }
 
-    public void sendMessage(String msg) throws IOException {
-        out.writeUTF(msg);
+    // false - сообщение не поставлено в очередь, причина уже передана в Callback.sendFailed
+    public boolean sendMessage(String msg) {
+        if (!binaryProtocol) {
+            return enqueue(encodeText(msg));
+        }
+
+        // текст из поля ввода разбирается по тем же правилам, что и на сервере в текстовом режиме
+        Command command = null;
+        List<String> fields = new ArrayList<>();
+        if (msg.startsWith("/")) {
+            int tokenEnd = msg.indexOf(' ');
+            command = Command.byToken(tokenEnd < 0 ? msg : msg.substring(0, tokenEnd));
+        }
+        if (command == null) {
+            command = Command.MESSAGE;
+            fields.add(msg);
+        } else {
+            String arguments = msg.substring(command.getToken().length()).strip();
+            int limit = command.isLastFieldText() ? command.getFields() : 0;
+            for (String field : arguments.split(" +", limit)) {
+                if (!field.isEmpty()) {
+                    fields.add(field);
+                }
+            }
+            // сервер отключает клиента, приславшего бинарную команду с неверным числом полей
+            if (fields.size() < command.getRequiredFields() || fields.size() > command.getFields()) {
+                callback.sendFailed("Неверные параметры команды " + command.getToken());
+                return false;
+            }
+        }
+        return sendCommand(command, fields.toArray(new String[0]));
+    }
+
+    public boolean sendCommand(Command command, String... fields) {
+        return enqueue(binaryProtocol ? encodeBinary(command, fields) : encodeText(command, fields));
+    }
+
+    private byte[] encodeText(Command command, String... fields) {
+        StringBuilder message = new StringBuilder(command == Command.MESSAGE ? "" : command.getToken());
+        for (String field : fields) {
+            if (!message.isEmpty()) {
+                message.append(' ');
+            }
+            message.append(field);
+        }
+        return encodeText(message.toString());
+    }
+
+    private synchronized byte[] encodeText(String message) {
+        textBytes.reset();
+        try {
+            textOut.writeUTF(message);
+        } catch (UTFDataFormatException e) {
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return textBytes.toByteArray();
+    }
+
+    private synchronized byte[] encodeBinary(Command command, String... fields) {
+        binaryBuffer.clear();
+        binaryBuffer.position(2);
+        binaryBuffer.put(command.getOpcode());
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length + 2 > binaryBuffer.remaining()) {
+                return null;
+            }
+            binaryBuffer.putShort((short) bytes.length);
+            binaryBuffer.put(bytes);
+        }
+        binaryBuffer.putShort(0, (short) (binaryBuffer.position() - 2));
+        return Arrays.copyOf(binaryBuffer.array(), binaryBuffer.position());
+    }
+
+    // frame == null - сообщение не поместилось в кадр
+    private boolean enqueue(byte[] frame) {
+        if (frame == null) {
+            callback.sendFailed("Сообщение слишком длинное");
+            return false;
+        }
+        if (closed) {
+            callback.sendFailed("Нет соединения с сервером");
+            return false;
+        }
+        if (!outbound.offer(frame)) {
+            callback.sendFailed("Сервер не успевает принимать сообщения, сообщение не отправлено");
+            return false;
+        }
+        return true;
     }
 }
\ No newline at end of file
@@ -1,7 +1,7 @@
 CREATE TABLE public."user"(
     id serial4,
     login VARCHAR(50) NOT NULL UNIQUE,
-	"password" VARCHAR (30) NOT NULL,
+	"password" VARCHAR (255) NOT NULL,
 	nickname VARCHAR (50) NOT NULL UNIQUE,
     start_ban_date_time TIMESTAMP DEFAULT NULL,
     end_ban_date_time TIMESTAMP DEFAULT NULL,
@@ -22,6 +22,7 @@ CREATE TABLE public.user_role(
     CONSTRAINT user_role_pk PRIMARY KEY (user_id, role_id)
 );
 
+-- пароль открытым текстом сервер заменит хэшем при первом входе
 INSERT INTO public."user" (login, "password", nickname)
 VALUES ('admin', 'admin', 'admin');
 
@@ -33,3 +34,58 @@ VALUES (currval('user_id_seq'), currval('role_id_seq'));
 
 INSERT INTO public."role" (name)
 VALUES ('user');
+
+-- Время последнего изменения пользователя: по нему сервер догружает изменения после снимка кэша (users.snapshot).
+-- Миграцию ниже можно выполнить и на уже существующей базе
+ALTER TABLE public."user" ADD COLUMN IF NOT EXISTS updated_at TIMESTAMP NOT NULL DEFAULT now();
+
+CREATE INDEX IF NOT EXISTS user_updated_at_idx ON public."user" (updated_at);
+
+CREATE OR REPLACE FUNCTION public.user_touch_updated_at() RETURNS TRIGGER AS $$
+BEGIN
+    NEW.updated_at = now();
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS user_touch_updated_at ON public."user";
+CREATE TRIGGER user_touch_updated_at
+    BEFORE UPDATE ON public."user"
+    FOR EACH ROW EXECUTE FUNCTION public.user_touch_updated_at();
+
+-- смена ролей тоже считается изменением пользователя
+CREATE OR REPLACE FUNCTION public.user_role_touch_user() RETURNS TRIGGER AS $$
+BEGIN
+    UPDATE public."user" SET updated_at = now()
+    WHERE id = CASE WHEN TG_OP = 'DELETE' THEN OLD.user_id ELSE NEW.user_id END;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS user_role_touch_user ON public.user_role;
+CREATE TRIGGER user_role_touch_user
+    AFTER INSERT OR UPDATE OR DELETE ON public.user_role
+    FOR EACH ROW EXECUTE FUNCTION public.user_role_touch_user();
+
+-- Пароли хранятся хэшами PBKDF2 (pbkdf2$итерации$соль$хэш), колонка для них расширена
+ALTER TABLE public."user" ALTER COLUMN "password" TYPE VARCHAR(255);
+
+-- Удаленные пользователи: по этой таблице сервер убирает их из кэша и снимка (users.snapshot)
+CREATE TABLE IF NOT EXISTS public.user_deleted(
+    login VARCHAR(50) NOT NULL,
+    deleted_at TIMESTAMP NOT NULL DEFAULT now()
+);
+
+CREATE INDEX IF NOT EXISTS user_deleted_deleted_at_idx ON public.user_deleted (deleted_at);
+
+CREATE OR REPLACE FUNCTION public.user_remember_deleted() RETURNS TRIGGER AS $$
+BEGIN
+    INSERT INTO public.user_deleted (login) VALUES (OLD.login);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS user_remember_deleted ON public."user";
+CREATE TRIGGER user_remember_deleted
+    AFTER DELETE ON public."user"
+    FOR EACH ROW EXECUTE FUNCTION public.user_remember_deleted();
@@ -0,0 +1,51 @@
+package ru.project.chat.loadgen;
+
+import lombok.Getter;
+
+import java.util.Properties;
+import java.util.ResourceBundle;
+
+@Getter
+public class LoadGenConfig {
+    private final boolean embeddedServer;
+    private final String serverMode;
+    private final int port;
+    private final int clients;
+    private final boolean register;
+    private final int passwordHashIterations;
+    private final boolean binary;
+    private final int rate;
+    private final long warmupSeconds;
+    private final long durationSeconds;
+    private final int broadcastWeight;
+    private final int privateWeight;
+    private final int listWeight;
+    private final int senderThreads;
+
+    public LoadGenConfig(Properties properties) {
+        this.embeddedServer = Boolean.parseBoolean(properties.getProperty("loadgen.server.embedded"));
+        this.serverMode = properties.getProperty("loadgen.server.mode");
+        this.port = Integer.parseInt(properties.getProperty("loadgen.port"));
+        this.clients = Integer.parseInt(properties.getProperty("loadgen.clients"));
+        this.register = "register".equalsIgnoreCase(properties.getProperty("loadgen.login"));
+        this.passwordHashIterations = Integer.parseInt(properties.getProperty("loadgen.password.hash.iterations"));
+        this.binary = Boolean.parseBoolean(properties.getProperty("loadgen.binary"));
+        this.rate = Integer.parseInt(properties.getProperty("loadgen.rate"));
+        this.warmupSeconds = Long.parseLong(properties.getProperty("loadgen.warmup.seconds"));
+        this.durationSeconds = Long.parseLong(properties.getProperty("loadgen.duration.seconds"));
+        this.broadcastWeight = Integer.parseInt(properties.getProperty("loadgen.mix.broadcast"));
+        this.privateWeight = Integer.parseInt(properties.getProperty("loadgen.mix.private"));
+        this.listWeight = Integer.parseInt(properties.getProperty("loadgen.mix.list"));
+        this.senderThreads = Integer.parseInt(properties.getProperty("loadgen.sender.threads"));
+    }
+
+    // Настройки из loadgen.properties, любую можно переопределить через -Dключ=значение
+    public static LoadGenConfig load() {
+        ResourceBundle resource = ResourceBundle.getBundle("loadgen");
+        Properties properties = new Properties();
+        for (String key : resource.keySet()) {
+            properties.setProperty(key, System.getProperty(key, resource.getString(key)));
+        }
+        return new LoadGenConfig(properties);
+    }
+}
@@ -0,0 +1,226 @@
+package ru.project.chat.loadgen;
+
+import org.HdrHistogram.Histogram;
+import ru.project.chat.server.InMemoryAuthenticationProvider;
+import ru.project.chat.server.Server;
+import ru.project.chat.server.ServerConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+// Нагрузочный прогон: N клиентов без окна входят в чат и с заданной общей частотой шлют
+// сообщения всем, /w и /list в заданной пропорции. В конце печатаются перцентили задержки доставки
+// по каждой команде, пропускная способность и ошибки.
+// Запуск: java -Dloadgen.clients=1000 -Dloadgen.rate=2000 -jar loadgen/target/loadgen.jar
+// Все настройки и значения по умолчанию - в loadgen.properties
+public class LoadGenerator {
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+
+    private final LoadGenConfig config;
+    private final LoadStats stats = new LoadStats();
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private Server server;
+    private Path historyDirectory;
+
+    public LoadGenerator(LoadGenConfig config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(LoadGenConfig.load()).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        if (config.isEmbeddedServer()) {
+            startServer();
+        }
+        connectClients();
+        List<SimulatedClient> online = clients.stream().filter(SimulatedClient::isOnline).toList();
+        System.out.println("В чате клиентов: " + online.size() + " из " + config.getClients());
+        if (online.size() < 2) {
+            System.out.println("Слишком мало клиентов для прогона");
+            return;
+        }
+
+        ExecutorService senders = Executors.newFixedThreadPool(config.getSenderThreads());
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / config.getRate();
+        long startNanos = System.nanoTime();
+        long measureFromNanos = startNanos + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        long endNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+        stats.startMeasuringFrom(measureFromNanos);
+
+        // отправка по расписанию, не дожидаясь ответов: если сервер не успевает, растет задержка, а не пауза
+        for (long intendedNanos = startNanos; intendedNanos < endNanos; intendedNanos += intervalNanos) {
+            long waitNanos = intendedNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            long scheduledNanos = intendedNanos;
+            senders.execute(() -> sendRandom(online, scheduledNanos));
+        }
+        // итоги читаются, когда отправители разобрали расписание и доставки, которые еще в пути, дошли;
+        // в замер входят сообщения, запланированные на время замера, поэтому и делится все на его длительность
+        senders.shutdown();
+        senders.awaitTermination(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        waitForDeliveries();
+        double seconds = (endNanos - measureFromNanos) / 1e9;
+        report(stats.measuredSent.sum() / seconds, stats.measuredDeliveries.sum() / seconds);
+
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        deleteHistory();
+    }
+
+    private void startServer() throws InterruptedException, IOException {
+        Properties overrides = new Properties();
+        overrides.setProperty("server.mode", config.getServerMode());
+        overrides.setProperty("server.port", String.valueOf(config.getPort()));
+        // история каждого прогона своя: сообщения прошлых прогонов не должны попадать в замер
+        historyDirectory = Files.createTempDirectory("loadgen-history");
+        overrides.setProperty("server.history.dir", historyDirectory.toString());
+        // нагрузка одного клиента может превышать лимиты частоты, по умолчанию они выключены (-Dserver.ratelimit.enabled=true)
+        overrides.setProperty("server.ratelimit.enabled", System.getProperty("server.ratelimit.enabled", "false"));
+        InMemoryAuthenticationProvider authenticationProvider = new InMemoryAuthenticationProvider(config.getPasswordHashIterations());
+        if (!config.isRegister()) {
+            for (int i = 0; i < config.getClients(); i++) {
+                authenticationProvider.register(nickname(i), "password", nickname(i));
+            }
+        }
+        server = new Server(ServerConfig.load(overrides), authenticationProvider);
+        Thread serverThread = new Thread(server::start, "loadgen-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000L);
+    }
+
+    private void connectClients() throws InterruptedException {
+        for (int i = 0; i < config.getClients(); i++) {
+            SimulatedClient client = new SimulatedClient(nickname(i), stats, config.isBinary());
+            try {
+                client.connect(config.getPort(), config.isRegister());
+                clients.add(client);
+            } catch (IOException e) {
+                stats.connectErrors.increment();
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CONNECT_TIMEOUT_SECONDS);
+        for (SimulatedClient client : clients) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !client.getLoggedIn().await(remaining, TimeUnit.NANOSECONDS)) {
+                stats.loginErrors.increment();
+            }
+        }
+    }
+
+    private void sendRandom(List<SimulatedClient> online, long intendedNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        SimulatedClient sender = online.get(random.nextInt(online.size()));
+        if (!sender.isOnline()) {
+            return;
+        }
+        Operation operation = randomOperation(random);
+        String recipient = null;
+        if (operation == Operation.PRIVATE) {
+            SimulatedClient target;
+            do {
+                target = online.get(random.nextInt(online.size()));
+            } while (target == sender);
+            recipient = target.getNickname();
+        }
+
+        if (!sender.send(operation, recipient, intendedNanos)) {
+            return;
+        }
+        stats.recordSent(intendedNanos);
+        stats.expectedDeliveries.add(switch (operation) {
+            case BROADCAST -> countOnline(online);
+            case PRIVATE -> 2;
+            case LIST -> 1;
+        });
+    }
+
+    private Operation randomOperation(ThreadLocalRandom random) {
+        int value = random.nextInt(config.getBroadcastWeight() + config.getPrivateWeight() + config.getListWeight());
+        if (value < config.getBroadcastWeight()) {
+            return Operation.BROADCAST;
+        }
+        if (value < config.getBroadcastWeight() + config.getPrivateWeight()) {
+            return Operation.PRIVATE;
+        }
+        return Operation.LIST;
+    }
+
+    private static int countOnline(List<SimulatedClient> online) {
+        int count = 0;
+        for (SimulatedClient client : online) {
+            if (client.isOnline()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Ждем сообщения, которые еще в пути, чтобы не считать их потерянными
+    private void waitForDeliveries() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (stats.deliveries.sum() < stats.expectedDeliveries.sum() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+    }
+
+    private void report(double sentPerSecond, double deliveredPerSecond) {
+        System.out.printf("Отправлено сообщений в секунду: %.1f (цель %d), доставлено в секунду: %.1f%n",
+                sentPerSecond, config.getRate(), deliveredPerSecond);
+        System.out.println("Задержка доставки, мс:");
+        System.out.printf("%10s %10s %10s %10s %10s %10s %10s%n", "команда", "доставок", "p50", "p90", "p99", "p99.9", "max");
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = stats.getLatency(operation);
+            System.out.printf("%10s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", operation.name().toLowerCase(),
+                    histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0);
+        }
+        long lost = Math.max(0, stats.expectedDeliveries.sum() - stats.deliveries.sum());
+        System.out.println("Ошибки: подключение " + stats.connectErrors.sum()
+                + ", вход " + stats.loginErrors.sum()
+                + ", отправка " + stats.sendErrors.sum()
+                + ", разрывы " + stats.disconnects.sum()
+                + ", не доставлено " + lost);
+        if (server != null) {
+            System.out.println("Сервер: выброшено из очередей " + server.getDroppedMessages().sum()
+                    + ", отключено медленных клиентов " + server.getSlowConsumerDisconnects().sum());
+        }
+    }
+
+    private void deleteHistory() throws IOException {
+        if (historyDirectory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(historyDirectory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(historyDirectory);
+    }
+
+    private static String nickname(int index) {
+        return "lg" + index;
+    }
+}
@@ -0,0 +1,64 @@
+package ru.project.chat.loadgen;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Счетчики прогона. Задержки пишутся в микросекундах от запланированного момента отправки,
+// поэтому отставание отправителей от расписания тоже попадает в задержку.
+// В замер (задержки, measuredSent, measuredDeliveries) входят только сообщения, запланированные после прогрева:
+// сообщение относится к замеру по времени отправки, а не по тому, когда его отправили или доставили
+public class LoadStats {
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    final LongAdder sent = new LongAdder();
+    final LongAdder expectedDeliveries = new LongAdder();
+    final LongAdder deliveries = new LongAdder();
+    final LongAdder connectErrors = new LongAdder();
+    final LongAdder loginErrors = new LongAdder();
+    final LongAdder sendErrors = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder measuredSent = new LongAdder();
+    final LongAdder measuredDeliveries = new LongAdder();
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+
+    public LoadStats() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new ConcurrentHistogram(MAX_LATENCY_MICROS, 3));
+        }
+    }
+
+    void startMeasuringFrom(long nanos) {
+        measureFromNanos = nanos;
+    }
+
+    boolean isMeasured(long intendedNanos) {
+        return intendedNanos >= measureFromNanos;
+    }
+
+    void recordSent(long intendedNanos) {
+        sent.increment();
+        if (isMeasured(intendedNanos)) {
+            measuredSent.increment();
+        }
+    }
+
+    void recordDelivery(Operation operation, long intendedNanos) {
+        deliveries.increment();
+        if (!isMeasured(intendedNanos)) {
+            return;
+        }
+        measuredDeliveries.increment();
+        long micros = (System.nanoTime() - intendedNanos) / 1000;
+        latencies.get(operation).recordValue(Math.max(0, Math.min(micros, MAX_LATENCY_MICROS)));
+    }
+
+    Histogram getLatency(Operation operation) {
+        return latencies.get(operation);
+    }
+}
@@ -0,0 +1,27 @@
+package ru.project.chat.loadgen;
+
+public enum Operation {
+    BROADCAST('b'),
+    PRIVATE('w'),
+    LIST('l');
+
+    // метка в тексте сообщения, по ней получатель понимает, какая это команда
+    private final char marker;
+
+    Operation(char marker) {
+        this.marker = marker;
+    }
+
+    public char getMarker() {
+        return marker;
+    }
+
+    public static Operation byMarker(char marker) {
+        for (Operation operation : values()) {
+            if (operation.marker == marker) {
+                return operation;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,144 @@
+package ru.project.chat.loadgen;
+
+import ru.project.chat.client.Callback;
+import ru.project.chat.client.Network;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+// Клиент без окна поверх Network. В текст каждого сообщения добавляется метка "lg <команда> <время>",
+// по ней получатель считает задержку доставки. Ответ на /list метки не содержит: он сопоставляется
+// с запросами по порядку, а от служебных сообщений ("вошел в чат" и т.п.) отличается тем, что это только список ников
+public class SimulatedClient implements Callback {
+    private static final String MARKER = ": lg ";
+
+    private final String nickname;
+    private final LoadStats stats;
+    private final Network network;
+    private final CountDownLatch loggedIn = new CountDownLatch(1);
+    private final Queue<Long> pendingLists = new ConcurrentLinkedQueue<>();
+    private volatile boolean online;
+    private volatile long onlineSinceNanos = Long.MAX_VALUE;
+    private volatile boolean stopping;
+
+    public SimulatedClient(String nickname, LoadStats stats, boolean binary) {
+        this.nickname = nickname;
+        this.stats = stats;
+        this.network = new Network(this, binary);
+    }
+
+    public void connect(int port, boolean register) throws IOException {
+        network.connect(port);
+        if (register) {
+            network.sendMessage("/register " + nickname + " " + nickname + " password");
+        } else {
+            network.sendMessage("/auth " + nickname + " password");
+        }
+    }
+
+    public CountDownLatch getLoggedIn() {
+        return loggedIn;
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    // false - сообщение не поставлено в очередь отправки, ошибка уже учтена в sendFailed
+    public boolean send(Operation operation, String recipient, long intendedNanos) {
+        return switch (operation) {
+            case BROADCAST -> network.sendMessage("lg " + operation.getMarker() + " " + intendedNanos);
+            case PRIVATE -> network.sendMessage("/w " + recipient + " lg " + operation.getMarker() + " " + intendedNanos);
+            case LIST -> {
+                pendingLists.add(intendedNanos);
+                if (!network.sendMessage("/list")) {
+                    pendingLists.remove(intendedNanos);
+                    yield false;
+                }
+                yield true;
+            }
+        };
+    }
+
+    @Override
+    public void call(Object... args) {
+        String message = (String) args[0];
+        int markerIndex = message.indexOf(MARKER);
+        if (markerIndex >= 0) {
+            int position = markerIndex + MARKER.length();
+            Operation operation = Operation.byMarker(message.charAt(position));
+            long intendedNanos = Long.parseLong(message, position + 2, message.length(), 10);
+            // сообщения, отправленные до входа, пришли из истории чата и в замер не входят
+            if (operation != null && intendedNanos >= onlineSinceNanos) {
+                stats.recordDelivery(operation, intendedNanos);
+            }
+            return;
+        }
+
+        if (!online) {
+            if (message.startsWith(nickname + ", добро пожаловать")) {
+                onlineSinceNanos = System.nanoTime();
+                online = true;
+                loggedIn.countDown();
+            } else if (message.startsWith("Указан")) {
+                stats.loginErrors.increment();
+                loggedIn.countDown();
+            }
+            return;
+        }
+
+        if (!pendingLists.isEmpty() && isUserList(message)) {
+            Long intendedNanos = pendingLists.poll();
+            if (intendedNanos != null) {
+                stats.recordDelivery(Operation.LIST, intendedNanos);
+            }
+        }
+    }
+
+    // Ответ на /list - ники через ", " (в нике не бывает пробелов), среди них обязательно свой.
+    // В сообщениях чата и служебных сообщениях всегда есть пробел внутри текста
+    private boolean isUserList(String message) {
+        boolean self = false;
+        int start = 0;
+        while (start <= message.length()) {
+            int end = message.indexOf(", ", start);
+            if (end < 0) {
+                end = message.length();
+            }
+            int space = message.indexOf(' ', start);
+            if (end == start || (space >= 0 && space < end)) {
+                return false;
+            }
+            if (end - start == nickname.length() && message.startsWith(nickname, start)) {
+                self = true;
+            }
+            start = end + 2;
+        }
+        return self;
+    }
+
+    @Override
+    public void closeWindow() {
+        if (online && !stopping) {
+            stats.disconnects.increment();
+        }
+        online = false;
+        loggedIn.countDown();
+    }
+
+    @Override
+    public void sendFailed(String reason) {
+        stats.sendErrors.increment();
+    }
+
+    public void close() {
+        stopping = true;
+        network.close();
+    }
+}
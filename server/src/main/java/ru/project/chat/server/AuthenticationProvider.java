@@ -14,5 +14,15 @@ public interface AuthenticationProvider {
     // Получение времени до конца бана
     long getMinutesUntilTheEndBan(String nickname);
 
+    // Роли пользователя в виде битовой маски RoleName.mask(), сессия запоминает ее при входе
+    int getRoleMask(String nickname);
+
+    // Окончание бана в миллисекундах epoch (0 - бана нет), сессия запоминает его при входе
+    long getBanDeadline(String nickname);
+
     boolean changeNickname(String oldNickname, String newNickname);
+
+    // Вызывается при остановке сервера, например, чтобы дописать в базу накопленные изменения
+    default void shutdown() {
+    }
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package ru.project.chat.server;
+
+import java.io.IOException;
+
+// Транспорт, через который ClientHandler общается с клиентом.
+// send не ждет записи в сокет: сообщение ставится в очередь клиента, а пишет его отдельный писатель
+public interface ClientConnection {
+    void send(Frame frame) throws IOException;
+
+    void close();
+
+    // Сколько сообщений ждут отправки клиенту
+    int getQueueDepth();
+
+    // Сколько сообщений выброшено из-за переполнения очереди
+    long getDroppedMessages();
+}
@@ -1,154 +1,362 @@
 package ru.project.chat.server;
 
 import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.metrics.ServerMetrics;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
-import static ru.project.chat.server.Command.*;
+import static ru.project.chat.server.Command.EXIT;
+import static ru.project.chat.server.model.RoleName.ADMIN;
 
 @Log4j2
-public class ClientHandler {
-    private Socket socket;
+public class ClientHandler implements IdleTimeoutWheel.Session {
+    private static final int MAX_ROOM_NAME_LENGTH = 32;
+    // около ста лет, дальше дата конца бана не помещается в LocalDateTime
+    private static final long MAX_BAN_MINUTES = 100L * 366 * 24 * 60;
 
-    private Server server;
-    private DataInputStream in;
-    private DataOutputStream out;
+    private final ClientConnection connection;
 
-    private boolean isAuthenticated = false;
+    private final Server server;
 
-    private String nickname;
+    private volatile boolean isAuthenticated = false;
 
-    private static final long TIME_TO_WAIT_ACTIVITY = 1_200_000L; // 20 минут в миллисекундах
+    // вход или регистрация выполняются в пуле Server, пока они идут, другие команды не принимаются
+    private volatile boolean authPending;
 
-    private AtomicLong atomicLastActivityTime = new AtomicLong();
+    // команда, обращающаяся к базе, выполняется в пуле Server; следующую такую команду ждем до ее окончания
+    private volatile boolean commandPending;
+
+    private volatile String login;
+
+    private volatile String nickname;
+
+    // пока при входе отправляется история, кадры для клиента копятся здесь и уходят после нее; null - не копятся
+    private volatile List<HeldFrame> heldFrames;
+
+    private final Object heldFramesLock = new Object();
+
+    private final AtomicLong atomicLastActivityTime = new AtomicLong();
+
+    private final AtomicBoolean connected = new AtomicBoolean(true);
+
+    // запись в таймере неактивности, снимается при отключении; null - сессия не под таймером (админ, не вошел)
+    private volatile IdleTimeoutWheel.Timeout idleTimeout;
+
+    // Снимок прав, полученный при входе: роли битовой маской и окончание бана (epoch millis).
+    // Бан, выданный во время сессии, сервер записывает сюда сам, поэтому на каждом сообщении обращаться к кэшу не нужно
+    private volatile int roleMask;
+
+    private volatile long banDeadline;
+
+    // комнаты клиента и комната, в которую уходят его сообщения без команды (null - ни в одной комнате)
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    private volatile String currentRoom;
+
+    // клиент прислал /binary и дальше шлет команды в бинарном формате
+    private boolean binaryProtocol;
+
+    private final CommandMessage commandMessage = new CommandMessage();
+
+    // буфер, в котором собираются строки чата этой сессии
+    private final FrameBuilder frameBuilder = new FrameBuilder();
+
+    private final ServerMetrics metrics;
+
+    // null - ограничение частоты выключено
+    private final SessionRateLimiter rateLimiter;
 
     public ClientHandler(Socket socket, Server server) throws IOException {
-        this.socket = socket;
+        this(new SocketConnection(socket, server), server);
+        server.getSessionThreadFactory().newThread(() -> readMessages((SocketConnection) connection)).start();
+    }
+
+    public ClientHandler(ClientConnection connection, Server server) {
+        this.connection = connection;
         this.server = server;
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
-        new Thread(() -> {
-            try {
-                authenticateUser();
-                checkUserActivity();
-                communicateWithUser();
-            } catch (EOFException e) {
-                log.warn("End of file reached");
-            } catch (IOException e) {
-                log.warn(e.getMessage());
-            } finally {
-                disconnect();
+        this.metrics = server.getMetrics();
+        ServerConfig config = server.getConfig();
+        this.rateLimiter = config.isRateLimitEnabled() ? new SessionRateLimiter(config, System.nanoTime()) : null;
+    }
+
+    private void readMessages(SocketConnection socketConnection) {
+        try {
+            int length;
+            do {
+                length = socketConnection.readFrameLength();
+            } while (handleFrame(socketConnection.readFrameBody(length), 0, length));
+        } catch (EOFException e) {
+            log.warn("End of file reached");
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        } finally {
+            disconnect();
+        }
+    }
+
+    // Обработка тела очередного кадра от клиента, false - сессию нужно завершить
+    public boolean handleFrame(byte[] array, int offset, int length) throws IOException {
+        if (!binaryProtocol) {
+            return handleMessage(Frame.decode(array, offset, length));
+        }
+        if (!connected.get()) {
+            return false;
+        }
+        metrics.getMessagesIn().increment();
+        commandMessage.parseBinary(array, offset, length);
+        return handleCommand(commandMessage);
+    }
+
+    // Обработка очередного текстового сообщения от клиента, false - сессию нужно завершить
+    public boolean handleMessage(String message) throws IOException {
+        if (!connected.get()) {
+            return false;
+        }
+        if (message.isEmpty()) {
+            return true;
+        }
+        metrics.getMessagesIn().increment();
+        commandMessage.parseText(message);
+        return handleCommand(commandMessage);
+    }
+
+    private boolean handleCommand(CommandMessage message) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            return executeCommand(message, startNanos);
+        } finally {
+            metrics.getCommandLatency(message.getCommand()).recordSince(startNanos);
+        }
+    }
+
+    private boolean executeCommand(CommandMessage message, long nowNanos) throws IOException {
+        // следующие сообщения клиента будут в бинарном формате; переключиться можно один раз и только до входа,
+        // чтобы формат не менялся посреди сессии
+        if (message.getCommand() == Command.BINARY) {
+            if (binaryProtocol || isAuthenticated || authPending) {
+                sendMessage("Бинарный режим включается только до входа");
+            } else {
+                binaryProtocol = true;
+            }
+            return true;
+        }
+        SessionRateLimiter.Result limit = checkRateLimit(message.getCommand(), nowNanos);
+        if (limit != SessionRateLimiter.Result.ALLOWED) {
+            // подбор пароля: замолчавшего неавторизованного клиента отключаем
+            return isAuthenticated || limit != SessionRateLimiter.Result.MUTED;
+        }
+        if (!isAuthenticated) {
+            authenticateUser(message);
+            return true;
+        }
+        return communicateWithUser(message);
+    }
+
+    private SessionRateLimiter.Result checkRateLimit(Command command, long nowNanos) {
+        RateLimitClass limitClass = RateLimitClass.of(command);
+        if (rateLimiter == null || limitClass == null || isAdmin()) {
+            return SessionRateLimiter.Result.ALLOWED;
+        }
+        SessionRateLimiter.Result result = rateLimiter.acquire(limitClass, nowNanos);
+        switch (result) {
+            case ALLOWED -> {
+                return result;
+            }
+            case THROTTLED -> sendMessage("Слишком много сообщений, подождите немного");
+            case MUTED -> {
+                metrics.getMutedSessions().increment();
+                log.warn("Флуд от " + (nickname != null ? nickname : "неавторизованного клиента") + ", сессия замолчала");
+                sendMessage("Вы отправляете слишком много сообщений, команды не принимаются "
+                        + server.getConfig().getMuteMillis() / 1000 + " секунд");
+            }
+            default -> {
             }
-        }).start();
+        }
+        metrics.getThrottledCommands().increment();
+        return result;
     }
 
     private void checkUserActivity() {
-        if (!server.getAuthenticationProvider().isCurrentUserAdmin(nickname)) {
-            new Thread(() -> {
-                try {
-                    while (true) {
-                        long lastActivityTime = atomicLastActivityTime.get();
-                        if (System.currentTimeMillis() - lastActivityTime >= TIME_TO_WAIT_ACTIVITY) {
-                            log.info("Превышено время ожидания действий от клиента " + nickname);
-                            disconnect();
-                            break;
-                        }
-                        Thread.sleep(10000L);
-                    }
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    disconnect();
-                }
-            }).start();
+        if (!isAdmin()) {
+            IdleTimeoutWheel.Timeout timeout = server.getIdleTimeoutWheel().register(this);
+            idleTimeout = timeout;
+            // сессию могли отключить, пока она ставилась в таймер
+            if (!connected.get()) {
+                timeout.cancel();
+            }
         }
     }
 
-    private void authenticateUser() throws IOException {
-        while (!isAuthenticated) {
-            String message = in.readUTF();
-            String[] splitMessage = message.split(" ");
-            String command = splitMessage[0];
+    private void authenticateUser(CommandMessage message) {
+        if (authPending) {
+            sendMessage("Дождитесь окончания входа");
+            return;
+        }
+        switch (message.getCommand()) {
+            case AUTH -> executeAuthCommand(message);
+            case REGISTER -> executeRegisterCommand(message);
+            default -> sendMessage("Авторизуйтесь сперва");
+        }
+    }
 
-            switch (command) {
-                case AUTH -> executeAuthCommand(splitMessage);
-                case REGISTER -> executeRegisterCommand(splitMessage);
-                default -> sendMessage("Авторизуйтесь сперва");
+    private void executeAuthCommand(CommandMessage message) {
+        if (message.getFieldCount() < 2) {
+            metrics.getAuthFailures().increment();
+            sendMessage("Указан неверный логин/пароль");
+            return;
+        }
+        String login = message.getField(0);
+        String password = message.getField(1);
+        submitAuth(() -> {
+            String nickname = server.getAuthenticationProvider().getNicknameByLoginAndPassword(login, password);
+            if (nickname == null || nickname.isBlank()) {
+                metrics.getAuthFailures().increment();
+                sendMessage("Указан неверный логин/пароль");
+                return false;
             }
+            return successAuthenticate(login, nickname);
+        });
+    }
+
+    private void executeRegisterCommand(CommandMessage message) {
+        if (message.getFieldCount() < 3) {
+            sendMessage("Укажите логин, никнейм и пароль");
+            return;
         }
+        String login = message.getField(0);
+        String nickname = message.getField(1);
+        String password = message.getField(2);
+        submitAuth(() -> {
+            if (!server.getAuthenticationProvider().register(login, password, nickname)) {
+                sendMessage("Указанный логин/никнейм уже заняты");
+                return false;
+            }
+            return successAuthenticate(login, nickname);
+        });
     }
 
-    private void executeAuthCommand(String[] splitMessage) {
-        String login = splitMessage[1];
-        String password = splitMessage[2];
-        String nickname = server.getAuthenticationProvider().getNicknameByLoginAndPassword(login, password);
-        if (nickname == null || nickname.isBlank()) {
-            sendMessage("Указан неверный логин/пароль");
-        } else {
-            successAuthenticate(nickname);
+    // Проверка пароля (PBKDF2) занимает процессор, поэтому идет в ограниченном пуле Server, а не в потоке,
+    // который читает сообщения: массовое переподключение не отнимает потоки у чата, а при переполнении
+    // очереди клиент получает отказ. task возвращает true, если клиент вошел
+    private void submitAuth(BooleanSupplier task) {
+        authPending = true;
+        long queuedNanos = System.nanoTime();
+        boolean accepted = server.submitAuth(() -> {
+            try {
+                if (connected.get() && task.getAsBoolean()) {
+                    checkUserActivity();
+                }
+            } catch (RuntimeException e) {
+                log.error("Ошибка при входе", e);
+                sendMessage("Не удалось войти, попробуйте еще раз");
+            } finally {
+                metrics.getAuthLatency().recordSince(queuedNanos);
+                authPending = false;
+            }
+        });
+        if (!accepted) {
+            authPending = false;
+            sendMessage("Сервер перегружен, попробуйте войти позже");
         }
     }
 
-    private void executeRegisterCommand(String[] splitMessage) {
-        String login = splitMessage[1];
-        String nickname = splitMessage[2];
-        String password = splitMessage[3];
-        boolean isRegistered = server.getAuthenticationProvider().register(login, password, nickname);
-        if (!isRegistered) {
-            sendMessage("Указанный логин/никнейм уже заняты");
-        } else {
-            successAuthenticate(nickname);
+    // Смена ника, бан и остановка сервера ждут базу (или останавливают сервер), поэтому идут в пул Server,
+    // как и вход: поток, который читает сообщения, в режиме nio обслуживает всех клиентов селектора
+    private void submitCommand(Runnable task) {
+        if (commandPending) {
+            sendMessage("Дождитесь выполнения предыдущей команды");
+            return;
+        }
+        commandPending = true;
+        boolean accepted = server.submitCommand(() -> {
+            try {
+                if (connected.get()) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                log.error("Ошибка при выполнении команды", e);
+                sendMessage("Не удалось выполнить команду, попробуйте еще раз");
+            } finally {
+                commandPending = false;
+            }
+        });
+        if (!accepted) {
+            commandPending = false;
+            sendMessage("Сервер перегружен, повторите команду позже");
         }
     }
 
-    private void successAuthenticate(String name) {
+    // Клиент подписывается раньше, чем получает историю, чтобы не потерять сообщения, отправленные во время входа;
+    // до отправки истории кадры для него придерживаются, поэтому порядок сохраняется.
+    // false - пользователь уже в чате на другом узле кластера
+    private boolean successAuthenticate(String login, String name) {
+        if (server.isActiveOnOtherNode(name)) {
+            sendMessage(name + " уже в чате на другом сервере");
+            return false;
+        }
+        this.login = login;
         this.nickname = name;
+        AuthenticationProvider authenticationProvider = server.getAuthenticationProvider();
+        roleMask = authenticationProvider.getRoleMask(name);
+        banDeadline = authenticationProvider.getBanDeadline(name);
         sendMessage(nickname + ", добро пожаловать в чат!");
+        boolean replay = server.isHistoryReplayEnabled();
+        if (replay) {
+            holdFrames();
+        }
         server.subscribe(this);
+        enterRoom(server.getConfig().getDefaultRoom());
+        if (replay) {
+            server.replayHistory(this);
+        }
         isAuthenticated = true;
         atomicLastActivityTime.set(System.currentTimeMillis());
+        // сессию могли закрыть, пока проверялся пароль: тогда при отключении ее еще не было среди клиентов
+        if (!connected.get()) {
+            server.unsubscribe(this);
+        }
+        return true;
     }
 
-    private void communicateWithUser() throws IOException {
-        while (true) {
-            String message = in.readUTF();
-            if (message.length() > 0) {
-                String[] splitMessage = message.split(" ");
-                String command = splitMessage[0];
-
-                if (command.equals(EXIT)) {
-                    break;
-                }
+    private boolean communicateWithUser(CommandMessage message) {
+        Command command = message.getCommand();
+        if (command == EXIT) {
+            return false;
+        }
 
-                long minutesUntilTheEndBan = server.getAuthenticationProvider().getMinutesUntilTheEndBan(nickname);
-                if (minutesUntilTheEndBan > 0) {
-                    server.sendMessageToUser(Collections.singletonList(nickname), "Вы забанены. Данное действие будет доступно через "
-                            + minutesUntilTheEndBan + "(минут)");
-                    break;
-                }
+        long now = System.currentTimeMillis();
+        if (banDeadline > now) {
+            long minutesUntilTheEndBan = (banDeadline - now) / 60_000;
+            sendMessage("Вы забанены. Данное действие будет доступно через " + minutesUntilTheEndBan + "(минут)");
+            return false;
+        }
 
-                switch (command) {
-                    case LIST -> executeCommandList();
-                    case WRITE -> executeCommandWrite(splitMessage);
-                    case CHANGE_NICK -> executeCommandChangeNick(splitMessage);
-                    case KICK -> executeCommandKick(splitMessage);
-                    case BAN -> executeCommandBan(splitMessage);
-                    case SHUTDOWN -> executeCommandShutdown();
-                    default -> executeBroadcastMessage(message);
-                }
+        switch (command) {
+            case LIST -> executeCommandList();
+            case WRITE -> executeCommandWrite(message);
+            case CHANGE_NICK -> executeCommandChangeNick(message);
+            case KICK -> executeCommandKick(message);
+            case BAN -> executeCommandBan(message);
+            case SHUTDOWN -> executeCommandShutdown();
+            case STATS -> executeCommandStats();
+            case JOIN -> executeCommandJoin(message);
+            case LEAVE -> executeCommandLeave(message);
+            case ROOMS -> executeCommandRooms();
+            case MESSAGE -> executeBroadcastMessage(message);
+            default -> {
             }
         }
+        return true;
     }
 
     private void executeCommandList() {
@@ -158,31 +366,33 @@ public class ClientHandler {
         sendMessage(joinedUsers);
     }
 
-    private void executeCommandWrite(String[] splitMessage) {
-        if (splitMessage.length > 2) {
-            String recipient = splitMessage[1];
-            String messageToUser = convertArrayToString(Arrays.copyOfRange(splitMessage, 2, splitMessage.length));
-            LocalDateTime now = LocalDateTime.now();
-            String formatNowDateTime = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            atomicLastActivityTime.set(LocalDateTime.now().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
-            server.sendMessageToUser(Arrays.asList(recipient, nickname), formatNowDateTime + " " + nickname + ": " + messageToUser);
+    private void executeCommandWrite(CommandMessage message) {
+        if (message.getFieldCount() == 2 && !message.isEmptyField(1)) {
+            String recipient = message.getField(0);
+            long now = System.currentTimeMillis();
+            atomicLastActivityTime.set(now);
+            Frame frame = buildChatLine(null, now, message, 1);
+            if (frame != null && !server.sendPrivateMessage(this, recipient, frame)) {
+                sendMessage("Пользователь " + recipient + " не в сети, сообщение не доставлено");
+            }
         }
     }
 
-    private void executeCommandChangeNick(String[] splitMessage) {
-        if (splitMessage.length == 2) {
-            String oldNickname = nickname;
-            String newNickname = splitMessage[1];
-            boolean successChangeNickname = server.changeNickname(this, newNickname);
-            if (successChangeNickname) {
-                server.broadcastMessage("Пользователь с ником " + oldNickname + " сменил ник на " + newNickname);
-            }
+    private void executeCommandChangeNick(CommandMessage message) {
+        if (message.getFieldCount() == 1) {
+            String newNickname = message.getField(0);
+            submitCommand(() -> {
+                String oldNickname = nickname;
+                if (server.changeNickname(this, newNickname)) {
+                    server.broadcastMessage("Пользователь с ником " + oldNickname + " сменил ник на " + newNickname);
+                }
+            });
         }
     }
 
-    private void executeCommandKick(String[] splitMessage) {
-        if (server.getAuthenticationProvider().isCurrentUserAdmin(nickname)) {
-            String nicknameForKick = splitMessage[1];
+    private void executeCommandKick(CommandMessage message) {
+        if (isAdmin() && message.getFieldCount() > 0) {
+            String nicknameForKick = message.getField(0);
             var clientForKick = server.getClientForKick(nicknameForKick);
             if (clientForKick != null) {
                 clientForKick.disconnect();
@@ -190,69 +400,240 @@ public class ClientHandler {
         }
     }
 
-    private void executeCommandBan(String[] splitMessage) {
-        if (server.getAuthenticationProvider().isCurrentUserAdmin(nickname)) {
-            String nicknameForBan = splitMessage[1];
+    private void executeCommandBan(CommandMessage message) {
+        if (isAdmin() && message.getFieldCount() > 0) {
+            String nicknameForBan = message.getField(0);
             long minutesBan = 0L;
-            if (splitMessage.length > 2) {
-                minutesBan = Long.parseLong(splitMessage[2]);
+            if (message.getFieldCount() > 1) {
+                try {
+                    minutesBan = message.getLongField(1);
+                } catch (NumberFormatException e) {
+                    minutesBan = -1;
+                }
             }
-            server.getAuthenticationProvider().banUser(nicknameForBan, minutesBan);
+            if (minutesBan < 0 || minutesBan > MAX_BAN_MINUTES) {
+                sendMessage("Укажите срок бана в минутах от 0 до " + MAX_BAN_MINUTES + " (0 - навсегда)");
+                return;
+            }
+            long minutes = minutesBan;
+            submitCommand(() -> server.banUser(nicknameForBan, minutes));
+        }
+    }
+
+    private void executeCommandShutdown() {
+        if (isAdmin()) {
+            submitCommand(() -> {
+                try {
+                    server.shutdownServer();
+                } catch (IOException e) {
+                    log.error("Ошибка при остановке сервера", e);
+                }
+            });
         }
     }
 
-    private void executeCommandShutdown() throws IOException {
-        if (server.getAuthenticationProvider().isCurrentUserAdmin(nickname)) {
-            server.shutdownServer();
+    private void executeCommandStats() {
+        if (isAdmin()) {
+            sendMessage(server.getStats().format());
         }
     }
 
-    private void executeBroadcastMessage(String message) {
-        LocalDateTime now = LocalDateTime.now();
-        String formatNowDateTime = now.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-        atomicLastActivityTime.set(LocalDateTime.now().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
-        server.broadcastMessage(formatNowDateTime + " " + nickname + ": " + message);
+    private void executeCommandJoin(CommandMessage message) {
+        if (message.getFieldCount() != 1 || message.getField(0).length() > MAX_ROOM_NAME_LENGTH) {
+            sendMessage("Укажите название комнаты (не длиннее " + MAX_ROOM_NAME_LENGTH + " символов)");
+            return;
+        }
+        String roomName = message.getField(0);
+        atomicLastActivityTime.set(System.currentTimeMillis());
+        if (enterRoom(roomName)) {
+            server.notifyRoom(roomName, "[" + roomName + "] " + nickname + " вошел в комнату");
+        }
+        sendMessage("Сообщения уходят в комнату " + roomName);
     }
 
-    private String convertArrayToString(String[] strings) {
-        StringBuilder stringBuilder = new StringBuilder();
-        for (String string : strings) {
-            stringBuilder.append(string).append(" ");
+    private void executeCommandLeave(CommandMessage message) {
+        String roomName = message.getFieldCount() > 0 ? message.getField(0) : currentRoom;
+        if (roomName == null) {
+            sendMessage("Вы не состоите ни в одной комнате");
+            return;
+        }
+        if (!rooms.remove(roomName)) {
+            sendMessage("Вы не состоите в комнате " + roomName);
+            return;
+        }
+        atomicLastActivityTime.set(System.currentTimeMillis());
+        server.leaveRoom(this, roomName);
+        server.notifyRoom(roomName, "[" + roomName + "] " + nickname + " вышел из комнаты");
+        if (roomName.equals(currentRoom)) {
+            currentRoom = rooms.stream().findAny().orElse(null);
         }
-        return stringBuilder.toString();
+        sendMessage("Вы вышли из комнаты " + roomName + (currentRoom != null
+                ? ", сообщения уходят в комнату " + currentRoom
+                : ", войдите в комнату командой /join"));
     }
 
+    private void executeCommandRooms() {
+        atomicLastActivityTime.set(System.currentTimeMillis());
+        sendMessage("Комнаты: " + String.join(", ", server.getRoomList())
+                + (currentRoom != null ? ". Сообщения уходят в комнату " + currentRoom : ""));
+    }
+
+    // Вход в комнату и выбор ее для следующих сообщений, false - клиент уже был в комнате
+    private boolean enterRoom(String roomName) {
+        currentRoom = roomName;
+        rooms.add(roomName);
+        boolean joined = server.joinRoom(this, roomName);
+        // сессию могли закрыть одновременно со входом, тогда Server уже вывел ее из комнат
+        if (!connected.get()) {
+            server.leaveRoom(this, roomName);
+        }
+        return joined;
+    }
+
+    private void executeBroadcastMessage(CommandMessage message) {
+        String roomName = currentRoom;
+        if (roomName == null) {
+            sendMessage("Вы не состоите ни в одной комнате, войдите в комнату командой /join");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        atomicLastActivityTime.set(now);
+        // сообщения в комнату по умолчанию выглядят как раньше, в остальных комнатах перед ними название комнаты
+        String room = roomName.equals(server.getConfig().getDefaultRoom()) ? null : roomName;
+        Frame frame = buildChatLine(room, now, message, 0);
+        if (frame != null) {
+            server.publishMessage(roomName, frame);
+        }
+    }
+
+    // Строка чата "[комната] время ник: текст" собирается сразу в кадр: время берется из общего MessageClock,
+    // текст копируется из поля команды. null - строка не помещается в кадр
+    private Frame buildChatLine(String room, long nowMillis, CommandMessage message, int textField) {
+        frameBuilder.reset();
+        if (room != null) {
+            frameBuilder.append("[").append(room).append("] ");
+        }
+        frameBuilder.append(MessageClock.timestamp(nowMillis)).append(nickname).append(": ");
+        message.appendField(textField, frameBuilder);
+        try {
+            return frameBuilder.build();
+        } catch (UTFDataFormatException e) {
+            log.warn(e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
     public void disconnect() {
-        server.unsubscribe(this);
-        closeResources();
+        if (connected.compareAndSet(true, false)) {
+            IdleTimeoutWheel.Timeout timeout = idleTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            server.unsubscribe(this);
+            closeResources();
+        }
     }
 
     public void closeResources() {
+        connection.close();
+    }
+
+    public void sendMessage(String message) {
         try {
-            if (in != null) {
-                in.close();
-            }
-            if (out != null) {
-                out.flush();
-                out.close();
-            }
-            if (socket != null) {
-                socket.close();
-            }
+            sendFrame(Frame.of(message));
+            metrics.getMessagesOut().increment();
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            log.warn(e.getMessage());
         }
     }
 
-    public void sendMessage(String message) {
+    public void sendFrame(Frame frame) {
+        sendFrame(frame, -1);
+    }
+
+    // historySeq - номер сообщения в истории (-1 - не из истории), по нему отбрасываются придержанные кадры,
+    // которые уже вошли в отправленную историю
+    public void sendFrame(Frame frame, long historySeq) {
+        if (heldFrames != null) {
+            synchronized (heldFramesLock) {
+                List<HeldFrame> held = heldFrames;
+                if (held != null) {
+                    held.add(new HeldFrame(frame, historySeq));
+                    return;
+                }
+            }
+        }
+        send(frame);
+    }
+
+    private void send(Frame frame) {
         try {
-            out.writeUTF(message);
+            connection.send(frame);
         } catch (IOException e) {
-            e.printStackTrace();
+            log.warn(e.getMessage());
             disconnect();
         }
     }
 
+    public void holdFrames() {
+        synchronized (heldFramesLock) {
+            heldFrames = new ArrayList<>();
+        }
+    }
+
+    // Отправляет историю (null - нечего отправлять), затем придержанные кадры, кроме сообщений истории
+    // с номерами меньше upToSeq. Новые кадры ждут на блокировке, пока не уйдут придержанные
+    public void releaseFrames(Frame history, long upToSeq) {
+        synchronized (heldFramesLock) {
+            if (history != null) {
+                send(history);
+            }
+            for (HeldFrame held : heldFrames) {
+                if (held.historySeq < 0 || held.historySeq >= upToSeq) {
+                    send(held.frame);
+                }
+            }
+            heldFrames = null;
+        }
+    }
+
+    private boolean isAdmin() {
+        return (roleMask & ADMIN.mask()) != 0;
+    }
+
+    public void setBanDeadline(long banDeadline) {
+        this.banDeadline = banDeadline;
+    }
+
+    public ClientConnection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected.get();
+    }
+
+    public boolean isAuthenticated() {
+        return isAuthenticated;
+    }
+
+    @Override
+    public long getLastActivityTime() {
+        return atomicLastActivityTime.get();
+    }
+
+    // Комнаты клиента, Server выводит из них клиента при отключении
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public String getLogin() {
+        return login;
+    }
+
+    @Override
     public String getNickname() {
         return nickname;
     }
@@ -260,4 +641,7 @@ public class ClientHandler {
     public void setNickname(String nickname) {
         this.nickname = nickname;
     }
+
+    private record HeldFrame(Frame frame, long historySeq) {
+    }
 }
\ No newline at end of file
@@ -1,22 +1,101 @@
 package ru.project.chat.server;
 
-public class Command {
+import java.util.Arrays;
 
-    public static final String AUTH = "/auth";
+// Команды протокола. В текстовом режиме команда определяется по токену в начале строки,
+// в бинарном - по первому байту сообщения (opcode). Обычное сообщение в чат - это MESSAGE,
+// у него нет токена, а единственное поле - весь текст сообщения.
+// Для каждой команды задано обязательное и наибольшее число полей
+public enum Command {
+    MESSAGE(0, null, 1, 1, true),
+    AUTH(1, "/auth", 2, 2, false),
+    REGISTER(2, "/register", 3, 3, false),
+    LIST(3, "/list", 0, 0, false),
+    WRITE(4, "/w", 2, 2, true),
+    CHANGE_NICK(5, "/changenick", 1, 1, false),
+    KICK(6, "/kick", 1, 1, false),
+    BAN(7, "/ban", 1, 2, false),
+    SHUTDOWN(8, "/shutdown", 0, 0, false),
+    EXIT(9, "/exit", 0, 0, false),
+    // переключение клиента в бинарный режим, отправляется текстом
+    BINARY(10, "/binary", 0, 0, false),
+    STATS(11, "/stats", 0, 0, false),
+    JOIN(12, "/join", 1, 1, false),
+    LEAVE(13, "/leave", 0, 1, false),
+    ROOMS(14, "/rooms", 0, 0, false);
 
-    public static final String REGISTER = "/register";
+    private static final Command[] BY_OPCODE = new Command[256];
+    // команды с токеном по длине токена: values() копирует массив при каждом вызове, поэтому на разборе
+    // сообщения не вызывается
+    private static final Command[][] BY_TOKEN_LENGTH;
 
-    public static final String LIST = "/list";
+    static {
+        Command[] commands = values();
+        int maxTokenLength = 0;
+        for (Command command : commands) {
+            BY_OPCODE[command.opcode] = command;
+            if (command.token != null) {
+                maxTokenLength = Math.max(maxTokenLength, command.token.length());
+            }
+        }
+        BY_TOKEN_LENGTH = new Command[maxTokenLength + 1][];
+        for (int length = 0; length <= maxTokenLength; length++) {
+            int tokenLength = length;
+            BY_TOKEN_LENGTH[length] = Arrays.stream(commands)
+                    .filter(command -> command.token != null && command.token.length() == tokenLength)
+                    .toArray(Command[]::new);
+        }
+    }
 
-    public static final String WRITE = "/w";
+    private final byte opcode;
+    private final String token;
+    private final int requiredFields;
+    private final int fields;
+    // последнее поле в текстовом режиме забирает весь остаток строки вместе с пробелами
+    private final boolean lastFieldIsText;
 
-    public static final String KICK = "/kick";
+    Command(int opcode, String token, int requiredFields, int fields, boolean lastFieldIsText) {
+        this.opcode = (byte) opcode;
+        this.token = token;
+        this.requiredFields = requiredFields;
+        this.fields = fields;
+        this.lastFieldIsText = lastFieldIsText;
+    }
 
-    public static final String BAN = "/ban";
+    public byte getOpcode() {
+        return opcode;
+    }
 
-    public static final String EXIT = "/exit";
+    public String getToken() {
+        return token;
+    }
 
-    public static final String SHUTDOWN = "/shutdown";
+    public int getRequiredFields() {
+        return requiredFields;
+    }
 
-    public static final String CHANGE_NICK = "/changenick";
-}
\ No newline at end of file
+    public int getFields() {
+        return fields;
+    }
+
+    public boolean isLastFieldText() {
+        return lastFieldIsText;
+    }
+
+    public static Command byOpcode(byte opcode) {
+        return BY_OPCODE[opcode & 0xFF];
+    }
+
+    // Поиск команды по токену message[0, end) без создания подстроки
+    public static Command byToken(String message, int end) {
+        if (end >= BY_TOKEN_LENGTH.length) {
+            return null;
+        }
+        for (Command command : BY_TOKEN_LENGTH[end]) {
+            if (message.startsWith(command.token)) {
+                return command;
+            }
+        }
+        return null;
+    }
+}
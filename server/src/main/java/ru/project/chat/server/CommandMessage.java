@@ -0,0 +1,152 @@
+package ru.project.chat.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Разобранное сообщение клиента. Строка не режется на части: запоминаются только границы полей
+// во входном сообщении, а строка поля создается, когда обработчик ее запрашивает.
+// Экземпляр принадлежит сессии и переиспользуется для каждого сообщения.
+//
+// Бинарный формат сообщения (внутри обычного кадра с двумя байтами длины):
+// байт opcode, затем поля подряд, каждое - два байта длины и строка в UTF-8
+public class CommandMessage {
+    private static final int MAX_FIELDS = 8;
+
+    private final int[] starts = new int[MAX_FIELDS];
+    private final int[] ends = new int[MAX_FIELDS];
+    private Command command;
+    private int fieldCount;
+    // источник полей: строка в текстовом режиме или массив байт в бинарном
+    private String text;
+    private byte[] array;
+
+    public void parseText(String message) {
+        text = message;
+        array = null;
+        fieldCount = 0;
+
+        int tokenEnd = message.indexOf(' ');
+        if (tokenEnd < 0) {
+            tokenEnd = message.length();
+        }
+        command = message.startsWith("/") ? Command.byToken(message, tokenEnd) : null;
+        if (command == null) {
+            command = Command.MESSAGE;
+            addField(0, message.length());
+            return;
+        }
+
+        int position = tokenEnd;
+        while (position < message.length() && fieldCount < MAX_FIELDS) {
+            if (message.charAt(position) == ' ') {
+                position++;
+                continue;
+            }
+            if (command.isLastFieldText() && fieldCount == command.getFields() - 1) {
+                addField(position, message.length());
+                return;
+            }
+            int end = message.indexOf(' ', position);
+            if (end < 0) {
+                end = message.length();
+            }
+            addField(position, end);
+            position = end;
+        }
+    }
+
+    public void parseBinary(byte[] array, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Пустое бинарное сообщение");
+        }
+        command = Command.byOpcode(array[offset]);
+        if (command == null) {
+            throw new IOException("Неизвестный код команды: " + (array[offset] & 0xFF));
+        }
+        this.array = array;
+        text = null;
+        fieldCount = 0;
+
+        int position = offset + 1;
+        int end = offset + length;
+        while (position < end) {
+            if (end - position < 2 || fieldCount == MAX_FIELDS) {
+                throw new IOException("Поврежденное бинарное сообщение");
+            }
+            int fieldLength = ((array[position] & 0xFF) << 8) | (array[position + 1] & 0xFF);
+            position += 2;
+            if (end - position < fieldLength) {
+                throw new IOException("Поврежденное бинарное сообщение");
+            }
+            addField(position, position + fieldLength);
+            position += fieldLength;
+        }
+        // обработчики читают поля по номеру, поэтому число полей проверяется до разбора команды
+        if (fieldCount < command.getRequiredFields() || fieldCount > command.getFields()) {
+            throw new IOException("Неверное число полей команды " + command + ": " + fieldCount);
+        }
+    }
+
+    private void addField(int start, int end) {
+        starts[fieldCount] = start;
+        ends[fieldCount] = end;
+        fieldCount++;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public boolean isEmptyField(int index) {
+        return starts[index] == ends[index];
+    }
+
+    public String getField(int index) {
+        if (text != null) {
+            return text.substring(starts[index], ends[index]);
+        }
+        return new String(array, starts[index], ends[index] - starts[index], StandardCharsets.UTF_8);
+    }
+
+    // Поле дописывается в кадр без создания строки
+    public void appendField(int index, FrameBuilder builder) {
+        if (text != null) {
+            builder.append(text, starts[index], ends[index]);
+        } else {
+            builder.appendUtf8(array, starts[index], ends[index]);
+        }
+    }
+
+    // Число без создания строки поля
+    public long getLongField(int index) {
+        int start = starts[index];
+        int end = ends[index];
+        boolean negative = start < end && charAt(start) == '-';
+        if (negative) {
+            start++;
+        }
+        if (start == end) {
+            throw new NumberFormatException("Пустое число");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Не число: " + getField(index));
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Слишком большое число: " + getField(index));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private int charAt(int index) {
+        return text != null ? text.charAt(index) : array[index];
+    }
+}
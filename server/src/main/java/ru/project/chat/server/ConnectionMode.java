@@ -0,0 +1,7 @@
+package ru.project.chat.server;
+
+public enum ConnectionMode {
+    BLOCKING,
+    VIRTUAL,
+    NIO
+}
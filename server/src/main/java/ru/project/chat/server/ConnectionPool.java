@@ -0,0 +1,410 @@
+package ru.project.chat.server;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Пул соединений с базой. Соединение, полученное из пула, при close() возвращается в пул,
+// а подготовленные запросы (prepareStatement(sql)) кэшируются на физическом соединении и переиспользуются.
+// Работает с любым JDBC-драйвером, поэтому для тестов подойдет и встроенная база
+@Log4j2
+public class ConnectionPool implements ConnectionPoolMBean, AutoCloseable {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long maxWaitMillis;
+    private final long validationIntervalMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // свободные соединения, последнее возвращенное - первым (в хвосте остаются самые давно простаивающие)
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private int total;
+    private boolean closed;
+
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder waitCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private volatile long maxWaitNanos;
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long idleTimeoutMillis, long maxWaitMillis, long validationIntervalMillis,
+                          int validationTimeoutSeconds, int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.statementCacheSize = statementCacheSize;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "db-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeoutMillis / 2, 1000L);
+        evictor.scheduleWithFixedDelay(this::evictIdle, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection getConnection() throws SQLException {
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        boolean waited = false;
+        while (true) {
+            PooledConnection pooled = null;
+            boolean create = false;
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && total >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SQLException("Не удалось получить соединение из пула за " + maxWaitMillis + " мс");
+                    }
+                    waited = true;
+                    released.awaitNanos(remaining);
+                }
+                if (closed) {
+                    throw new SQLException("Пул соединений закрыт");
+                }
+                if (!idle.isEmpty()) {
+                    pooled = idle.pollFirst();
+                } else {
+                    total++;
+                    create = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                pooled = createConnection();
+            } else if (!validate(pooled)) {
+                discard(pooled);
+                continue;
+            }
+
+            recordWait(startTime, waited);
+            return pooled.lease();
+        }
+    }
+
+    private PooledConnection createConnection() throws SQLException {
+        try {
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException e) {
+            lock.lock();
+            try {
+                total--;
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    // Проверяем только соединения, которые долго простаивали: проверка - это лишний запрос к базе
+    private boolean validate(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsedTime < validationIntervalMillis) {
+            return true;
+        }
+        try {
+            return pooled.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void recordWait(long startTime, boolean waited) {
+        long waitNanos = System.nanoTime() - startTime;
+        borrowCount.increment();
+        totalWaitNanos.add(waitNanos);
+        if (waited) {
+            waitCount.increment();
+        }
+        if (waitNanos > maxWaitNanos) {
+            maxWaitNanos = waitNanos;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.warn("Соединение не удалось вернуть в пул: " + e.getMessage());
+            discard(pooled);
+            return;
+        }
+
+        pooled.lastUsedTime = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (closed) {
+                total--;
+            } else {
+                idle.addFirst(pooled);
+                released.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        pooled.closePhysical();
+    }
+
+    private void discard(PooledConnection pooled) {
+        lock.lock();
+        try {
+            total--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+        pooled.closePhysical();
+    }
+
+    // Закрывает соединения, простаивающие дольше idleTimeout, и добирает пул до минимального размера
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        ArrayDeque<PooledConnection> evicted = new ArrayDeque<>();
+        int missing;
+        lock.lock();
+        try {
+            Iterator<PooledConnection> iterator = idle.descendingIterator();
+            while (iterator.hasNext() && total > minSize) {
+                PooledConnection pooled = iterator.next();
+                if (now - pooled.lastUsedTime < idleTimeoutMillis) {
+                    break;
+                }
+                iterator.remove();
+                total--;
+                evicted.add(pooled);
+            }
+            missing = closed ? 0 : minSize - total;
+            total += Math.max(missing, 0);
+        } finally {
+            lock.unlock();
+        }
+
+        for (PooledConnection pooled : evicted) {
+            pooled.closePhysical();
+        }
+        for (int i = 0; i < missing; i++) {
+            try {
+                release(createConnection());
+            } catch (SQLException e) {
+                log.warn("Не удалось открыть соединение с базой: " + e.getMessage());
+                lock.lock();
+                try {
+                    total -= missing - i - 1;
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            }
+        }
+        if (!evicted.isEmpty()) {
+            log.info("Закрыто простаивающих соединений: " + evicted.size());
+        }
+    }
+
+    @Override
+    public void close() {
+        ArrayDeque<PooledConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            total -= idle.size();
+            idle.clear();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        evictor.shutdownNow();
+        for (PooledConnection pooled : toClose) {
+            pooled.closePhysical();
+        }
+    }
+
+    @Override
+    public int getTotalConnections() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    // Сколько раз пришлось ждать освобождения соединения
+    @Override
+    public long getWaitCount() {
+        return waitCount.sum();
+    }
+
+    @Override
+    public double getAverageWaitMillis() {
+        long count = borrowCount.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / 1_000_000.0 / count;
+    }
+
+    @Override
+    public double getMaxWaitMillis() {
+        return maxWaitNanos / 1_000_000.0;
+    }
+
+    private class PooledConnection {
+        private final Connection physical;
+        private final Map<String, PreparedStatement> statements;
+        private volatile long lastUsedTime = System.currentTimeMillis();
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        // Для каждой выдачи свой прокси: после close() им больше нельзя пользоваться
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new Lease(this));
+        }
+
+        PreparedStatement prepareCached(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = physical.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            PreparedStatement cached = statement;
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("close")) {
+                            cached.clearParameters();
+                            cached.clearBatch();
+                            return null;
+                        }
+                        return invoke(cached, method, args);
+                    });
+        }
+
+        void closePhysical() {
+            for (PreparedStatement statement : statements.values()) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                log.warn(e.getMessage());
+            }
+        }
+    }
+
+    private class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (!closed) {
+                        closed = true;
+                        release(pooled);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return closed;
+                }
+                default -> {
+                    if (closed) {
+                        throw new SQLException("Соединение уже возвращено в пул");
+                    }
+                    if (method.getName().equals("prepareStatement") && args.length == 1) {
+                        return pooled.prepareCached((String) args[0]);
+                    }
+                    return ConnectionPool.invoke(pooled.physical, method, args);
+                }
+            }
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            log.warn(e.getMessage());
+        }
+    }
+}
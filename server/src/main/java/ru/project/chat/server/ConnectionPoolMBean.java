@@ -0,0 +1,15 @@
+package ru.project.chat.server;
+
+public interface ConnectionPoolMBean {
+    int getTotalConnections();
+
+    int getIdleConnections();
+
+    long getBorrowCount();
+
+    long getWaitCount();
+
+    double getAverageWaitMillis();
+
+    double getMaxWaitMillis();
+}
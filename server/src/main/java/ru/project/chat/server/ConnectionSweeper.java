@@ -0,0 +1,90 @@
+package ru.project.chat.server;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Общий на весь сервер поток, который завершает отключения клиентов.
+// Принудительно закрывает сокеты, писатели которых не успели отправить остаток очереди за closeTimeout:
+// срок у всех одинаковый, поэтому очередь упорядочена по нему и проверяется только ее начало.
+// Рассылает уведомления "вышел из чата" уже после того, как отключение завершилось: если при рассылке
+// переполнится очередь другого медленного клиента, его отключение только добавит уведомление сюда,
+// а не начнет новую рассылку внутри текущей
+@Log4j2
+public class ConnectionSweeper implements Runnable {
+    private static final long TICK_MILLIS = 100L;
+
+    private final long closeTimeoutNanos;
+    private final Consumer<String> departureNotifier;
+    private final Queue<PendingClose> closes = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<String> departures = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public ConnectionSweeper(long closeTimeoutMillis, Consumer<String> departureNotifier) {
+        this.closeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(closeTimeoutMillis);
+        this.departureNotifier = departureNotifier;
+        this.thread = new Thread(this, "connection-sweeper");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // close будет вызван через closeTimeout, если соединение к тому времени не закрылось само
+    public void closeLater(Runnable close) {
+        closes.add(new PendingClose(System.nanoTime() + closeTimeoutNanos, close));
+    }
+
+    public void departed(String nickname) {
+        departures.add(nickname);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                String nickname = departures.poll(TICK_MILLIS, TimeUnit.MILLISECONDS);
+                while (nickname != null) {
+                    notifyDeparture(nickname);
+                    nickname = departures.poll();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            PendingClose pending;
+            while ((pending = closes.peek()) != null && pending.deadlineNanos - now <= 0) {
+                closes.poll();
+                pending.close.run();
+            }
+        }
+    }
+
+    private void notifyDeparture(String nickname) {
+        try {
+            departureNotifier.accept(nickname);
+        } catch (RuntimeException e) {
+            log.error("Ошибка при рассылке уведомления об отключении " + nickname, e);
+        }
+    }
+
+    // Оставшиеся сокеты закрываются сразу, уведомления при остановке сервера не рассылаются
+    public void close() {
+        running = false;
+        thread.interrupt();
+        PendingClose pending;
+        while ((pending = closes.poll()) != null) {
+            pending.close.run();
+        }
+    }
+
+    private record PendingClose(long deadlineNanos, Runnable close) {
+    }
+}
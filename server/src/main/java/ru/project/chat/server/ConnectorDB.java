@@ -1,18 +1,51 @@
 package ru.project.chat.server;
 
+import ru.project.chat.server.metrics.LatencyHistogram;
+import ru.project.chat.server.metrics.ServerMetrics;
+
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ResourceBundle;
 
 public class ConnectorDB {
+
+    // время одного обращения к базе; пул один на процесс, поэтому и эта метрика общая для всех серверов
+    private static final LatencyHistogram CALL_LATENCY = new LatencyHistogram();
+
+    // Пул создается при первом обращении, настройки читаются из database.properties один раз
+    private static class Holder {
+        private static final ConnectionPool POOL = createPool();
+    }
+
     public static Connection getConnection() throws SQLException {
+        return Holder.POOL.getConnection();
+    }
+
+    public static ConnectionPool getPool() {
+        return Holder.POOL;
+    }
+
+    public static LatencyHistogram getCallLatency() {
+        return CALL_LATENCY;
+    }
+
+    private static ConnectionPool createPool() {
         ResourceBundle resource = ResourceBundle.getBundle("database");
         String url = resource.getString("db.url");
         String dbName = resource.getString("db.name");
         String user = resource.getString("db.user");
         String pass = resource.getString("db.password");
 
-        return DriverManager.getConnection(url + dbName, user, pass);
+        ConnectionPool pool = new ConnectionPool(url + dbName, user, pass,
+                Integer.parseInt(resource.getString("db.pool.min")),
+                Integer.parseInt(resource.getString("db.pool.max")),
+                Long.parseLong(resource.getString("db.pool.idle.timeout.seconds")) * 1000,
+                Long.parseLong(resource.getString("db.pool.max.wait.millis")),
+                Long.parseLong(resource.getString("db.pool.validation.interval.seconds")) * 1000,
+                Integer.parseInt(resource.getString("db.pool.validation.timeout.seconds")),
+                Integer.parseInt(resource.getString("db.pool.statement.cache.size")));
+        ServerMetrics.register("type=ConnectionPool", pool);
+        ServerMetrics.register("type=Latency,name=dbCall", CALL_LATENCY);
+        return pool;
     }
-}
\ No newline at end of file
+}
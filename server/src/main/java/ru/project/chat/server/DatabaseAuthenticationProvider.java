@@ -5,279 +5,672 @@ import ru.project.chat.server.model.Role;
 import ru.project.chat.server.model.RoleName;
 import ru.project.chat.server.model.User;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static ru.project.chat.server.model.RoleName.ADMIN;
 
 @Log4j2
 public class DatabaseAuthenticationProvider implements AuthenticationProvider {
 
-    // кэш пользователей
-    private final List<User> users;
+    // кэш пользователей: в режиме eager в нем все пользователи, в режиме lazy - недавние, остальные читаются из базы
+    private final UserCache users;
+
+    // роли из таблицы role по id, загружаются при запуске и перечитываются при сверке с базой
+    private final Map<Integer, Role> roles = new ConcurrentHashMap<>();
+
+    // false - в кэше все пользователи, промах означает, что пользователя нет
+    private final boolean lazy;
+
+    // промах кэша проверяется по базе: в режиме lazy, а также в кластере, где пользователь мог появиться
+    // на другом узле и еще не дойти до кэша при сверке
+    private final boolean lookupMisses;
+
+    // изменения пишутся в базу в фоне, кэш обновляется сразу
+    private final WriteBehindJournal journal;
+
+    // снимок кэша на диске для быстрого перезапуска, null - выключен
+    private final UserSnapshot snapshot;
+
+    // сверка кэша с базой и запись снимка, null - ни то, ни другое не включено
+    private final ScheduledExecutorService cacheSync;
+
+    // updated_at из базы, до которого кэш (и снимок) учитывает изменения пользователей
+    private volatile long watermark;
+
+    // логины и ники, которых недавно не нашли в базе (в режиме lazy и в кластере)
+    private final UserMissCache missingLogins;
+
+    private final UserMissCache missingNicknames;
+
+    private final PasswordHasher hasher;
+
+    // недавно проверенные пароли, чтобы при переподключении не считать PBKDF2 заново
+    private final VerifiedCredentials verifiedCredentials;
 
     private static final String SELECT_ALL_USERS = "SELECT u.login login, u.nickname nickname, u.password password, " +
-            "u.start_ban_date_time, u.end_ban_date_time, ur.role_id role_id " +
+            "u.start_ban_date_time, u.end_ban_date_time, u.updated_at, ur.role_id role_id " +
             "FROM public.user u " +
             "JOIN public.user_role ur ON u.id = ur.user_id ";
 
-    private static final String SELECT_ALL_ROLES = "SELECT r.id id, r.name role_name FROM public.role r ";
+    private static final String SELECT_USER_BY_LOGIN = SELECT_ALL_USERS + "WHERE u.login = ?";
+
+    private static final String SELECT_USER_BY_NICKNAME = SELECT_ALL_USERS + "WHERE u.nickname = ?";
 
-    private static final String SELECT_CURRVAL_USER_ID = "SELECT currval('user_id_seq')";
+    private static final String SELECT_USERS_CHANGED_SINCE = SELECT_ALL_USERS + "WHERE u.updated_at > ?";
 
-    private static final String INSERT_INTO_USER = "INSERT INTO public.user (id, login, password, nickname) " +
-            "VALUES(nextval('user_id_seq'), ?, ?, ?)";
+    private static final String SELECT_DB_TIME = "SELECT LOCALTIMESTAMP db_time";
+
+    private static final String SELECT_ALL_ROLES = "SELECT r.id id, r.name role_name FROM public.role r ";
 
-    private static final String INSERT_INTO_USER_ROLE = "INSERT INTO public.user_role (user_id, role_id) VALUES (?, ?)";
+    // логины, удаленные из базы после watermark, таблицу заполняет триггер (init_db_script.sql)
+    private static final String SELECT_USERS_DELETED_SINCE = "SELECT d.login login FROM public.user_deleted d " +
+            "WHERE d.deleted_at > ?";
 
+    // пользователь и его роль добавляются одним запросом, чтобы регистрации можно было отправлять в базу пачкой.
+    // Занятый логин или ник не роняет пачку: запрос не добавляет строк, а registrationSkipped отличает
+    // повтор той же регистрации из журнала от настоящего конфликта
+    private static final String INSERT_INTO_USER_WITH_ROLE = "WITH inserted AS (" +
+            "INSERT INTO public.user (id, login, password, nickname) " +
+            "VALUES(nextval('user_id_seq'), ?, ?, ?) ON CONFLICT DO NOTHING RETURNING id) " +
+            "INSERT INTO public.user_role (user_id, role_id) SELECT id, ? FROM inserted";
+
+    // изменения пользователя ищут его по логину: ник мог смениться, пока изменение ждало в журнале,
+    // и повтор по нику попал бы в другого пользователя
     private static final String UPDATE_USER_FOR_TEMPORARY_BAN = "UPDATE public.user " +
             "SET start_ban_date_time = ? , end_ban_date_time = ? " +
-            "WHERE nickname = ?";
+            "WHERE login = ?";
+
+    private static final long SHUTDOWN_FLUSH_TIMEOUT_MILLIS = 10_000L;
+
+    // перед чтением пользователя из базы ждем, пока туда попадут изменения из журнала
+    private static final long LOAD_FLUSH_TIMEOUT_MILLIS = 5_000L;
+
+    // watermark отстает от времени базы: транзакция, начатая раньше чтения, может завершиться позже него
+    // со своим, более ранним updated_at
+    private static final long WATERMARK_OVERLAP_MILLIS = 60_000L;
 
     private static final String UPDATE_USER_NICKNAME = "UPDATE public.user " +
             "SET nickname = ? " +
-            "WHERE nickname = ?";
+            "WHERE login = ?";
 
+    private static final String UPDATE_USER_PASSWORD = "UPDATE public.user " +
+            "SET password = ? " +
+            "WHERE login = ?";
+
+    // Режим кэша задается в database.properties: eager - все пользователи загружаются при запуске,
+    // lazy - пользователь читается из базы при первом обращении, в кэше остаются db.users.cache.max.size недавних
     public DatabaseAuthenticationProvider() throws SQLException {
-        this.users = Collections.synchronizedList(new ArrayList<>());
+        this(false);
+    }
 
-        Map<User, Set<Integer>> userSetRoleId = new HashMap<>();
+    // clustered - сервер работает узлом кластера: пользователей меняют и другие узлы, поэтому кэш сверяется
+    // с базой каждые db.users.reconcile.seconds, а промах кэша проверяется по базе и в режиме eager
+    public DatabaseAuthenticationProvider(boolean clustered) throws SQLException {
+        // журнал создается до загрузки кэша: изменения, не записанные до остановки, сначала досылаются в базу
+        this(ResourceBundle.getBundle("database"), createJournal(), clustered);
+    }
+
+    // Если есть снимок (db.users.snapshot.file), вход обслуживается из него сразу, без обращения к базе,
+    // а изменения после его watermark догружаются в фоне; затем снимок переписывается каждые interval.seconds
+    // и при остановке
+    private DatabaseAuthenticationProvider(ResourceBundle resource, WriteBehindJournal journal, boolean clustered)
+            throws SQLException {
+        this.lazy = "lazy".equalsIgnoreCase(resource.getString("db.users.cache.mode"));
+        this.lookupMisses = lazy || clustered;
+        this.users = lazy ? new UserCache(Integer.parseInt(resource.getString("db.users.cache.max.size"))) : new UserCache();
+        long missTtlMillis = Long.parseLong(resource.getString("db.users.cache.miss.seconds")) * 1000;
+        int missMaxSize = Integer.parseInt(resource.getString("db.users.cache.miss.max.size"));
+        this.missingLogins = new UserMissCache(missTtlMillis, missMaxSize);
+        this.missingNicknames = new UserMissCache(missTtlMillis, missMaxSize);
+        this.journal = journal;
+        this.hasher = new PasswordHasher(Integer.parseInt(resource.getString("db.password.hash.iterations")));
+        this.verifiedCredentials = new VerifiedCredentials(
+                Long.parseLong(resource.getString("db.auth.cache.seconds")) * 1000,
+                Integer.parseInt(resource.getString("db.auth.cache.max.size")));
+        String snapshotFile = resource.getString("db.users.snapshot.file").trim();
+        this.snapshot = snapshotFile.isEmpty() ? null : new UserSnapshot(Path.of(snapshotFile));
+
+        UserSnapshot.Loaded loaded = snapshot != null ? snapshot.read() : null;
+        if (loaded != null) {
+            roles.putAll(loaded.roles());
+            for (User user : loaded.users()) {
+                users.add(user);
+            }
+            watermark = loaded.watermark();
+            log.info("Загрузили кеш пользователей из снимка " + snapshot.getFile() + ": " + users.size()
+                    + ", изменения из базы догружаются в фоне");
+        } else {
+            roles.putAll(loadRoles());
+            watermark = readWatermark();
+            if (lazy) {
+                log.info("Пользователи загружаются по требованию, в кэше до "
+                        + resource.getString("db.users.cache.max.size"));
+            } else {
+                loadUsers();
+            }
+        }
 
+        long reconcileSeconds = clustered ? Long.parseLong(resource.getString("db.users.reconcile.seconds")) : 0;
+        if (snapshot != null || reconcileSeconds > 0) {
+            // один поток: сверки и записи снимка не пересекаются
+            cacheSync = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "user-cache-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (snapshot != null) {
+                long intervalSeconds = Long.parseLong(resource.getString("db.users.snapshot.interval.seconds"));
+                cacheSync.scheduleWithFixedDelay(this::refreshSnapshot,
+                        loaded != null ? 0 : intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+            }
+            if (reconcileSeconds > 0) {
+                cacheSync.scheduleWithFixedDelay(this::reconcileQuietly,
+                        reconcileSeconds, reconcileSeconds, TimeUnit.SECONDS);
+                log.info("Кэш пользователей сверяется с базой каждые " + reconcileSeconds + " с");
+            }
+        } else {
+            cacheSync = null;
+        }
+    }
+
+    // Провайдер поверх уже заполненного кэша, база читается только при записи изменений (например, для замеров)
+    public DatabaseAuthenticationProvider(UserCache users, WriteBehindJournal journal) {
+        this.users = users;
+        this.journal = journal;
+        this.lazy = false;
+        this.lookupMisses = false;
+        this.missingLogins = new UserMissCache(0, 0);
+        this.missingNicknames = new UserMissCache(0, 0);
+        this.snapshot = null;
+        this.cacheSync = null;
+        this.hasher = new PasswordHasher(PasswordHasher.DEFAULT_ITERATIONS);
+        this.verifiedCredentials = new VerifiedCredentials(300_000, 10_000);
+    }
+
+    private static WriteBehindJournal createJournal() {
+        ResourceBundle resource = ResourceBundle.getBundle("database");
+        return new WriteBehindJournal(
+                Path.of(resource.getString("db.journal.file")),
+                Integer.parseInt(resource.getString("db.journal.batch.size")),
+                Long.parseLong(resource.getString("db.journal.retry.delay.millis")),
+                Integer.parseInt(resource.getString("db.journal.max.attempts")));
+    }
+
+    private Map<Integer, Role> loadRoles() throws SQLException {
+        Map<Integer, Role> rolesMap = new HashMap<>();
+        long startNanos = System.nanoTime();
         try (Connection connection = ConnectorDB.getConnection();
-             Statement statement = connection.createStatement()) {
-            try (ResultSet rs = statement.executeQuery(SELECT_ALL_USERS)) {
-                while (rs.next()) {
-                    User user = new User();
-                    user.setLogin(rs.getString("login"));
-                    user.setNickname(rs.getString("nickname"));
-                    user.setPassword(rs.getString("password"));
-
-                    Timestamp sqlStartBanDateTime = rs.getTimestamp("start_ban_date_time");
-                    if (sqlStartBanDateTime != null) {
-                        user.setStartBanDateTime(sqlStartBanDateTime.toLocalDateTime());
-                    }
-
-                    Timestamp sqlEndBanDateTime = rs.getTimestamp("end_ban_date_time");
-                    if (sqlEndBanDateTime != null) {
-                        user.setEndBanDateTime(sqlEndBanDateTime.toLocalDateTime());
-                    }
-
-                    int roleId = rs.getInt("role_id");
-                    if (userSetRoleId.containsKey(user)) {
-                        Set<Integer> roleIds = userSetRoleId.get(user);
-                        roleIds.add(roleId);
-                    } else {
-                        Set<Integer> roleIds = new HashSet<>();
-                        roleIds.add(roleId);
-                        userSetRoleId.put(user, roleIds);
-                    }
-                }
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(SELECT_ALL_ROLES)) {
+            while (rs.next()) {
+                Role role = new Role(
+                        rs.getInt("id"),
+                        RoleName.valueOf(rs.getString("role_name").toUpperCase())
+                );
+                rolesMap.put(role.getId(), role);
             }
         }
+        ConnectorDB.getCallLatency().recordSince(startNanos);
+        return rolesMap;
+    }
 
-        HashMap<Integer, Role> rolesMap = new HashMap<>();
+    private void loadUsers() throws SQLException {
+        long startNanos = System.nanoTime();
         try (Connection connection = ConnectorDB.getConnection();
-             Statement statement = connection.createStatement()) {
-            try (ResultSet rs = statement.executeQuery(SELECT_ALL_ROLES)) {
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(SELECT_ALL_USERS)) {
+            for (User user : readUsers(rs)) {
+                users.add(user);
+            }
+        }
+        ConnectorDB.getCallLatency().recordSince(startNanos);
+        log.info("Загрузили кеш пользователей: " + users.size());
+    }
+
+    // Время базы с запасом WATERMARK_OVERLAP_MILLIS: все изменения до него уже будут прочитаны
+    private long readWatermark() throws SQLException {
+        long startNanos = System.nanoTime();
+        try (Connection connection = ConnectorDB.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(SELECT_DB_TIME)) {
+            rs.next();
+            return rs.getTimestamp("db_time").getTime() - WATERMARK_OVERLAP_MILLIS;
+        } finally {
+            ConnectorDB.getCallLatency().recordSince(startNanos);
+        }
+    }
+
+    // Догружает из базы пользователей, измененных после watermark: другими узлами, вручную или изменения,
+    // которые журнал дописал после записи снимка, и убирает из кэша удаленных. Если за время чтения появились
+    // свои изменения, прочитанное может быть уже устаревшим, тогда попробуем в следующий раз
+    private void reconcile() throws SQLException {
+        long seq = journal.getLastSeq();
+        journal.flush(LOAD_FLUSH_TIMEOUT_MILLIS);
+        long newWatermark = readWatermark();
+        Map<Integer, Role> freshRoles = loadRoles();
+        List<String> deleted = new ArrayList<>();
+        List<User> changed;
+        long startNanos = System.nanoTime();
+        try (Connection connection = ConnectorDB.getConnection();
+             PreparedStatement deletedStatement = connection.prepareStatement(SELECT_USERS_DELETED_SINCE);
+             PreparedStatement changedStatement = connection.prepareStatement(SELECT_USERS_CHANGED_SINCE)) {
+            deletedStatement.setTimestamp(1, new Timestamp(watermark));
+            try (ResultSet rs = deletedStatement.executeQuery()) {
                 while (rs.next()) {
-                    Role role = new Role(
-                            rs.getInt("id"),
-                            RoleName.valueOf(rs.getString("role_name").toUpperCase())
-                    );
-                    rolesMap.put(role.getId(), role);
+                    deleted.add(rs.getString("login"));
                 }
             }
+            changedStatement.setTimestamp(1, new Timestamp(watermark));
+            try (ResultSet rs = changedStatement.executeQuery()) {
+                changed = readUsers(rs, freshRoles);
+            }
+        } finally {
+            ConnectorDB.getCallLatency().recordSince(startNanos);
         }
+        if (journal.getLastSeq() != seq) {
+            log.info("Пользователи менялись во время сверки с базой, сверка отложена");
+            return;
+        }
+        updateRoles(freshRoles);
+        // удаленный и заново зарегистрированный логин есть в обоих списках, поэтому сначала удаляем
+        for (String login : deleted) {
+            User user = users.getByLogin(login);
+            if (user != null) {
+                users.remove(user);
+            }
+        }
+        List<User> conflicts = new ArrayList<>();
+        for (User user : changed) {
+            // пользователь мог появиться на другом узле, пока его логин или ник числился ненайденным
+            missingLogins.remove(user.getLogin());
+            missingNicknames.remove(user.getNickname());
+            if (!users.refresh(user, !lazy)) {
+                conflicts.add(user);
+            }
+        }
+        // ник мог освободиться позже в той же пачке
+        conflicts.removeIf(user -> users.refresh(user, !lazy));
+        if (!conflicts.isEmpty() && !resolveConflicts(conflicts)) {
+            // watermark не сдвигаем, иначе несостоявшиеся изменения больше не прочитаются
+            log.warn("Не удалось применить изменения пользователей из базы: " + conflicts.size()
+                    + ", повторим при следующей сверке");
+            return;
+        }
+        watermark = newWatermark;
+        if (!changed.isEmpty() || !deleted.isEmpty()) {
+            log.info("Сверили кеш пользователей с базой, изменились: " + changed.size()
+                    + ", удалены: " + deleted.size());
+        }
+    }
 
-        for (Map.Entry<User, Set<Integer>> userSetEntry : userSetRoleId.entrySet()) {
-            User user = userSetEntry.getKey();
-            for (Integer id : userSetEntry.getValue()) {
-                Set<Role> roles = user.getRoles();
-                roles.add(rolesMap.get(id));
-                user.setRoles(roles);
+    // Новый ник в кэше занят пользователем, который в базе уже сменил ник (например, ники поменяли местами):
+    // база уникальна по нику, поэтому этот пользователь в кэше устарел. Он убирается из кэша, изменение
+    // применяется, а в режиме eager он сразу читается из базы заново. false - что-то применить не удалось
+    private boolean resolveConflicts(List<User> conflicts) throws SQLException {
+        List<String> stale = new ArrayList<>();
+        boolean resolved = true;
+        for (User user : conflicts) {
+            User holder = users.getByNickname(user.getNickname());
+            if (holder != null && !holder.getLogin().equals(user.getLogin())) {
+                users.remove(holder);
+                stale.add(holder.getLogin());
             }
-            users.add(user);
+            resolved &= users.refresh(user, !lazy);
         }
-        log.info("Загрузили кеш пользователей");
+        if (!lazy) {
+            for (String login : stale) {
+                load(SELECT_USER_BY_LOGIN, login);
+                // не нашелся - удален из базы; нашелся, но не попал в кэш - его ник тоже еще занят
+                resolved &= users.getByLogin(login) != null || !isInDatabase(login);
+            }
+        }
+        return resolved;
     }
 
-    @Override
-    public String getNicknameByLoginAndPassword(String login, String password) {
-        for (User user : users) {
-            if (Objects.equals(user.getPassword(), password) && Objects.equals(user.getLogin(), login)) {
-                return user.getNickname();
+    private boolean isInDatabase(String login) throws SQLException {
+        long startNanos = System.nanoTime();
+        try (Connection connection = ConnectorDB.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_USER_BY_LOGIN)) {
+            statement.setString(1, login);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
             }
+        } finally {
+            ConnectorDB.getCallLatency().recordSince(startNanos);
         }
-        return null;
     }
 
-    @Override
-    public boolean register(String login, String password, String nickname) {
-        for (User user : users) {
-            if (Objects.equals(user.getNickname(), nickname) || Objects.equals(user.getLogin(), login)) {
-                return false;
+    // Роли из базы заменяют прежние; если таблица role изменилась, роли пользователей в кэше
+    // сопоставляются с ней заново по id
+    private void updateRoles(Map<Integer, Role> freshRoles) {
+        if (freshRoles.equals(roles)) {
+            return;
+        }
+        roles.putAll(freshRoles);
+        roles.keySet().retainAll(freshRoles.keySet());
+        for (User user : users.values()) {
+            Set<Role> userRoles = new HashSet<>();
+            for (Role role : user.getRoles()) {
+                Role fresh = freshRoles.get(role.getId());
+                if (fresh != null) {
+                    userRoles.add(fresh);
+                }
             }
+            user.setRoles(userRoles);
         }
+        log.info("Роли в базе изменились, роли пользователей в кэше обновлены");
+    }
 
-        Role role = new Role(2, RoleName.USER);
-        users.add(new User(login, password, nickname, role));
+    private void refreshSnapshot() {
+        reconcileQuietly();
+        writeSnapshot();
+    }
 
-        Integer currValUserId;
-        try (Connection connection = ConnectorDB.getConnection();
-             PreparedStatement prepareStatement = connection.prepareStatement(INSERT_INTO_USER)) {
+    private void reconcileQuietly() {
+        try {
+            reconcile();
+        } catch (SQLException e) {
+            log.warn("Не удалось сверить кеш пользователей с базой: " + e.getMessage());
+        }
+    }
 
-            prepareStatement.setString(1, login);
-            prepareStatement.setString(2, password);
-            prepareStatement.setString(3, nickname);
+    private void writeSnapshot() {
+        try {
+            snapshot.write(users.values(), roles.values(), watermark);
+        } catch (IOException e) {
+            log.warn("Не удалось записать снимок пользователей " + snapshot.getFile() + ": " + e.getMessage());
+        }
+    }
 
-            int affectedRows = prepareStatement.executeUpdate();
+    // Строки запроса SELECT_ALL_USERS, по строке на каждую роль пользователя
+    private List<User> readUsers(ResultSet rs) throws SQLException {
+        return readUsers(rs, roles);
+    }
 
-            if (affectedRows == 0) {
-                throw new SQLException("Creating user failed, no rows affected.");
-            }
+    private List<User> readUsers(ResultSet rs, Map<Integer, Role> roles) throws SQLException {
+        Map<String, User> usersByLogin = new LinkedHashMap<>();
+        while (rs.next()) {
+            User user = usersByLogin.get(rs.getString("login"));
+            if (user == null) {
+                user = new User();
+                user.setLogin(rs.getString("login"));
+                user.setNickname(rs.getString("nickname"));
+                user.setPassword(rs.getString("password"));
+
+                Timestamp sqlStartBanDateTime = rs.getTimestamp("start_ban_date_time");
+                if (sqlStartBanDateTime != null) {
+                    user.setStartBanDateTime(sqlStartBanDateTime.toLocalDateTime());
+                }
 
-            log.info("В таблицу user добавлена " + affectedRows + " запись/записей");
+                Timestamp sqlEndBanDateTime = rs.getTimestamp("end_ban_date_time");
+                if (sqlEndBanDateTime != null) {
+                    user.setEndBanDateTime(sqlEndBanDateTime.toLocalDateTime());
+                }
+                user.setRoles(new HashSet<>());
+                usersByLogin.put(user.getLogin(), user);
+            }
+            Role role = roles.get(rs.getInt("role_id"));
+            if (role != null) {
+                user.getRoles().add(role);
+            }
+        }
+        return new ArrayList<>(usersByLogin.values());
+    }
 
-            currValUserId = getCurrVal(connection);
+    // Пользователь из кэша, а при промахе в режиме lazy или в кластере - из базы; ошибка базы означает,
+    // что пользователя не нашли
+    private User findByLogin(String login) {
+        try {
+            return lookupByLogin(login);
+        } catch (SQLException e) {
+            log.error("Не удалось загрузить пользователя " + login + ": " + e.getMessage());
+            return null;
+        }
+    }
 
-            if (currValUserId == null) {
-                throw new SQLException("Creating user failed, no ID obtained.");
-            }
+    private User findByNickname(String nickname) {
+        try {
+            return lookupByNickname(nickname);
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            log.error("Не удалось загрузить пользователя " + nickname + ": " + e.getMessage());
+            return null;
         }
+    }
 
-        try (Connection connection = ConnectorDB.getConnection();
-             PreparedStatement prepareStatement = connection.prepareStatement(INSERT_INTO_USER_ROLE)) {
+    private User lookupByLogin(String login) throws SQLException {
+        User user = users.getByLogin(login);
+        if (user != null || !lookupMisses || missingLogins.isMissing(login)) {
+            return user;
+        }
+        user = load(SELECT_USER_BY_LOGIN, login);
+        if (user == null && users.getByLogin(login) == null) {
+            missingLogins.put(login);
+        }
+        return user;
+    }
 
-            prepareStatement.setInt(1, currValUserId);
-            prepareStatement.setInt(2, role.getId());
+    private User lookupByNickname(String nickname) throws SQLException {
+        User user = users.getByNickname(nickname);
+        if (user != null || !lookupMisses || missingNicknames.isMissing(nickname)) {
+            return user;
+        }
+        user = load(SELECT_USER_BY_NICKNAME, nickname);
+        if (user == null && users.getByNickname(nickname) == null) {
+            missingNicknames.put(nickname);
+        }
+        return user;
+    }
 
-            int affectedRows = prepareStatement.executeUpdate();
-            log.info("В таблицу user_role добавлена " + affectedRows + " запись/записей");
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+    // Промах кэша в режиме lazy или в кластере: пользователь читается из базы и попадает в кэш.
+    // Если его одновременно загрузил другой поток, возвращается тот, что уже в кэше
+    private User load(String sql, String key) throws SQLException {
+        // изменения из журнала должны попасть в базу раньше, иначе прочитаем устаревшего пользователя
+        if (journal.hasUnprocessed()) {
+            journal.flush(LOAD_FLUSH_TIMEOUT_MILLIS);
+        }
+        User user = query(sql, key);
+        if (user == null) {
+            return null;
         }
+        if (users.add(user)) {
+            return user;
+        }
+        User cached = users.getByLogin(user.getLogin());
+        return cached != null ? cached : user;
+    }
 
-        return true;
+    // Пользователь из базы как есть, без ожидания журнала и без кэша
+    private User query(String sql, String key) throws SQLException {
+        long startNanos = System.nanoTime();
+        List<User> loaded;
+        try (Connection connection = ConnectorDB.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, key);
+            try (ResultSet rs = statement.executeQuery()) {
+                loaded = readUsers(rs);
+            }
+        } finally {
+            ConnectorDB.getCallLatency().recordSince(startNanos);
+        }
+        return loaded.isEmpty() ? null : loaded.get(0);
     }
 
     @Override
-    public void banUser(String nicknameForBan, long minutesBan) {
-        for (User user : users) {
-            if (nicknameForBan.equals(user.getNickname())) {
-                try {
-                    LocalDateTime startBanDateTime = LocalDateTime.now();
-
-                    LocalDateTime endBanDateTime;
-                    int affectedRows;
-                    if (minutesBan == 0) {
-                        endBanDateTime = LocalDateTime.MAX; // время для перманентного бана
-                    } else {
-                        endBanDateTime = startBanDateTime.plusMinutes(minutesBan);
-                    }
-
-                    affectedRows = updateUserForBan(nicknameForBan, startBanDateTime, endBanDateTime);
-
-                    user.setStartBanDateTime(startBanDateTime);
-                    user.setEndBanDateTime(endBanDateTime);
-
-                    if (affectedRows == 0) {
-                        throw new SQLException("Updating user failed, no rows affected.");
-                    } else {
-                        log.info("Пользователь с ником " + nicknameForBan + " забанен до " + endBanDateTime);
-                    }
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
-            }
+    public String getNicknameByLoginAndPassword(String login, String password) {
+        User user = findByLogin(login);
+        String stored = user != null ? user.getPassword() : null;
+        if (stored != null && verifiedCredentials.isVerified(login, password, stored)) {
+            return user.getNickname();
+        }
+        if (!hasher.verify(password, stored)) {
+            return null;
         }
+        // пароль из прежней версии или со старым числом итераций заменяется новым хэшем
+        if (hasher.needsRehash(stored)) {
+            stored = hasher.hash(password);
+            user.setPassword(stored);
+            journal.append(UPDATE_USER_PASSWORD, stored, login);
+        }
+        verifiedCredentials.put(login, password, stored);
+        return user.getNickname();
     }
 
-    private int updateUserForBan(String nicknameForBan,
-                                 LocalDateTime startBanDateTime,
-                                 LocalDateTime endBanDateTime) throws SQLException {
-        try (Connection connection = ConnectorDB.getConnection();
-             PreparedStatement prepareStatement = connection.prepareStatement(UPDATE_USER_FOR_TEMPORARY_BAN)) {
+    @Override
+    public boolean register(String login, String password, String nickname) {
+        Role role = new Role(2, RoleName.USER);
+        // в режиме lazy или в кластере логин или ник может быть занят пользователем, которого нет в кэше
+        if (lookupMisses ? isTaken(login, nickname)
+                : users.getByLogin(login) != null || users.getByNickname(nickname) != null) {
+            return false;
+        }
+        // занятость проверена заранее, чтобы не считать хэш зря; окончательно ее проверяет users.add
+        String passwordHash = hasher.hash(password);
+        User user = new User(login, passwordHash, nickname, role);
+        if (!users.add(user)) {
+            return false;
+        }
 
-            Timestamp sqlStartBanDateTime = Timestamp.valueOf(startBanDateTime);
-            Timestamp sqlEndBanDateTime = Timestamp.valueOf(endBanDateTime);
+        missingLogins.remove(login);
+        missingNicknames.remove(nickname);
+        journal.append(() -> registrationSkipped(user), INSERT_INTO_USER_WITH_ROLE,
+                login, passwordHash, nickname, role.getId());
+        log.info("Зарегистрирован пользователь с ником " + nickname);
+        return true;
+    }
 
-            prepareStatement.setTimestamp(1, sqlStartBanDateTime);
-            prepareStatement.setTimestamp(2, sqlEndBanDateTime);
-            prepareStatement.setString(3, nicknameForBan);
+    @Override
+    public void banUser(String nicknameForBan, long minutesBan) {
+        User user = findByNickname(nicknameForBan);
+        if (user != null) {
+            LocalDateTime startBanDateTime = LocalDateTime.now();
+
+            LocalDateTime endBanDateTime;
+            if (minutesBan == 0) {
+                endBanDateTime = LocalDateTime.MAX; // время для перманентного бана
+            } else {
+                endBanDateTime = startBanDateTime.plusMinutes(minutesBan);
+            }
 
-            return prepareStatement.executeUpdate();
+            // под блокировкой пользователя, чтобы изменения попали в журнал в том же порядке, что и в кэш
+            synchronized (user) {
+                user.setStartBanDateTime(startBanDateTime);
+                user.setEndBanDateTime(endBanDateTime);
+                journal.append(UPDATE_USER_FOR_TEMPORARY_BAN, startBanDateTime, endBanDateTime, user.getLogin());
+            }
+            log.info("Пользователь с ником " + nicknameForBan + " забанен до " + endBanDateTime);
         }
     }
 
     @Override
     public long getMinutesUntilTheEndBan(String nickname) {
-        for (User user : users) {
-            if (nickname.equals(user.getNickname()) && user.getEndBanDateTime() != null) {
-                return Duration.between(LocalDateTime.now(), user.getEndBanDateTime()).toMinutes();
-            }
+        User user = findByNickname(nickname);
+        if (user != null && user.getEndBanDateTime() != null) {
+            return Duration.between(LocalDateTime.now(), user.getEndBanDateTime()).toMinutes();
         }
         return 0;
     }
 
     @Override
     public boolean isCurrentUserAdmin(String nickname) {
-        for (User user : users) {
-            if (nickname.equals(user.getNickname()) && user.getRoles().contains(new Role(1, ADMIN))) {
-                return true;
-            }
-        }
-        return false;
+        User user = findByNickname(nickname);
+        return user != null && (user.getRoleMask() & ADMIN.mask()) != 0;
     }
 
     @Override
-    public boolean changeNickname(String oldNickname, String newNickname) {
-        int affectedRows = 0;
-        for (User user : users) {
-            if (oldNickname.equals(user.getNickname())) {
-                user.setNickname(newNickname);
-
-                try {
-                    affectedRows = updateNickname(oldNickname, newNickname);
-
-                    if (affectedRows == 0) {
-                        throw new SQLException("Updating user failed, no rows affected.");
-                    } else {
-                        log.info("Пользователь с ником " + oldNickname + " сменил ник на " + newNickname);
-                    }
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-        return affectedRows != 0;
+    public int getRoleMask(String nickname) {
+        User user = findByNickname(nickname);
+        return user == null ? 0 : user.getRoleMask();
     }
 
-    private int updateNickname(String oldNickname, String newNickname) throws SQLException {
-        try (Connection connection = ConnectorDB.getConnection();
-             PreparedStatement prepareStatement = connection.prepareStatement(UPDATE_USER_NICKNAME)) {
-            prepareStatement.setString(1, newNickname);
-            prepareStatement.setString(2, oldNickname);
+    @Override
+    public long getBanDeadline(String nickname) {
+        User user = findByNickname(nickname);
+        return user == null ? 0 : user.getBanDeadlineMillis();
+    }
 
-            return prepareStatement.executeUpdate();
+    @Override
+    public boolean changeNickname(String oldNickname, String newNickname) {
+        User user = findByNickname(oldNickname);
+        if (user == null || lookupMisses && isTaken(null, newNickname)) {
+            return false;
+        }
+        // под блокировкой пользователя ник не сменится другим потоком, и смены ника попадут в журнал
+        // в том же порядке, что и в кэш
+        synchronized (user) {
+            if (!oldNickname.equals(user.getNickname()) || !users.rename(oldNickname, newNickname)) {
+                return false;
+            }
+            journal.append(UPDATE_USER_NICKNAME, newNickname, user.getLogin());
         }
+
+        missingNicknames.remove(newNickname);
+        log.info("Пользователь с ником " + oldNickname + " сменил ник на " + newNickname);
+        return true;
     }
 
-    private Integer getCurrVal(Connection connection) {
-        Integer nextID_from_seq = null;
-        try (Statement statement = connection.createStatement()) {
-            try (ResultSet rs = statement.executeQuery(SELECT_CURRVAL_USER_ID)) {
-                if (rs.next()) {
-                    nextID_from_seq = rs.getInt(1);
+    // Регистрация не добавила строк в базу (или так и не записалась). Если в базе пользователь с тем же логином
+    // и тем же хэшем пароля, это повтор этой же регистрации из журнала: хэш с солью у каждой регистрации свой.
+    // Иначе логин или ник заняли в базе мимо кэша (другой узел, вручную): пользователь убирается из кэша,
+    // а в режиме eager на его место читаются настоящие владельцы логина и ника.
+    // Вызывается в потоке журнала, поэтому база читается без ожидания журнала
+    private void registrationSkipped(User registered) {
+        String login = registered.getLogin();
+        try {
+            User stored = query(SELECT_USER_BY_LOGIN, login);
+            if (stored != null && registered.getPassword().equals(stored.getPassword())) {
+                return;
+            }
+            log.warn("Регистрация " + login + " с ником " + registered.getNickname()
+                    + " не записана в базу: логин или ник уже занят, пользователь убран из кэша");
+            users.remove(registered);
+            if (!lazy) {
+                if (stored != null) {
+                    users.refresh(stored, true);
+                }
+                User holder = query(SELECT_USER_BY_NICKNAME, registered.getNickname());
+                if (holder != null) {
+                    users.refresh(holder, true);
                 }
             }
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            log.error("Не удалось проверить незаписанную регистрацию " + login + ": " + e.getMessage());
         }
+    }
+
+    // Занят ли логин или ник; если база недоступна, считаем занятым, чтобы не завести дубликат
+    private boolean isTaken(String login, String nickname) {
+        try {
+            return (login != null && lookupByLogin(login) != null) || lookupByNickname(nickname) != null;
+        } catch (SQLException e) {
+            log.error("Не удалось проверить логин " + login + " и ник " + nickname + ": " + e.getMessage());
+            return true;
+        }
+    }
 
-        return nextID_from_seq;
+    // Дописываем в базу все накопленные изменения, сохраняем снимок кэша и закрываем пул соединений
+    @Override
+    public void shutdown() {
+        journal.close(SHUTDOWN_FLUSH_TIMEOUT_MILLIS);
+        if (cacheSync != null) {
+            cacheSync.shutdownNow();
+            try {
+                cacheSync.awaitTermination(SHUTDOWN_FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (snapshot != null) {
+            writeSnapshot();
+        }
+        ConnectorDB.getPool().close();
     }
-}
\ No newline at end of file
+}
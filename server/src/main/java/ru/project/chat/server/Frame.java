@@ -0,0 +1,115 @@
+package ru.project.chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Сообщение, уже закодированное так же, как это делает DataOutputStream.writeUTF:
+// два байта длины и строка в modified UTF-8. Кадр неизменяемый, поэтому при рассылке
+// он кодируется один раз и одни и те же байты пишутся в сокет каждого получателя
+public final class Frame {
+    private static final int MAX_LENGTH = 0xFFFF;
+
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+
+    private Frame(byte[] bytes) {
+        this.bytes = bytes;
+        this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public static Frame of(String message) throws UTFDataFormatException {
+        int length = message.length();
+        int encodedLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                encodedLength++;
+            } else if (c > 0x07FF) {
+                encodedLength += 3;
+            } else {
+                encodedLength += 2;
+            }
+        }
+        if (encodedLength > MAX_LENGTH) {
+            throw new UTFDataFormatException("Сообщение слишком длинное: " + encodedLength + " байт");
+        }
+
+        byte[] bytes = new byte[encodedLength + 2];
+        bytes[0] = (byte) (encodedLength >>> 8);
+        bytes[1] = (byte) encodedLength;
+        int position = 2;
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[position++] = (byte) c;
+            } else if (c > 0x07FF) {
+                bytes[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return new Frame(bytes);
+    }
+
+    // Один или несколько кадров, уже закодированных подряд (например, история сообщений):
+    // клиент прочитает их как отдельные сообщения
+    public static Frame ofEncoded(byte[] encodedFrames) {
+        return new Frame(encodedFrames);
+    }
+
+    // Обратное преобразование: строка из тела кадра (без двух байт длины), как DataInputStream.readUTF,
+    // но без промежуточных потоков и копирования массива
+    public static String decode(byte[] array, int offset, int length) throws UTFDataFormatException {
+        int end = offset + length;
+        int position = offset;
+        while (position < end && array[position] > 0) {
+            position++;
+        }
+        if (position == end) {
+            return new String(array, offset, length, StandardCharsets.ISO_8859_1);
+        }
+
+        char[] chars = new char[length];
+        int count = 0;
+        for (int i = offset; i < position; i++) {
+            chars[count++] = (char) array[i];
+        }
+        while (position < end) {
+            int b = array[position] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+                position++;
+            } else if ((b & 0xE0) == 0xC0 && position + 1 < end && (array[position + 1] & 0xC0) == 0x80) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (array[position + 1] & 0x3F));
+                position += 2;
+            } else if ((b & 0xF0) == 0xE0 && position + 2 < end
+                    && (array[position + 1] & 0xC0) == 0x80 && (array[position + 2] & 0xC0) == 0x80) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((array[position + 1] & 0x3F) << 6)
+                        | (array[position + 2] & 0x3F));
+                position += 3;
+            } else {
+                throw new UTFDataFormatException("Некорректная строка в кадре, байт " + (position - offset));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    // Общий буфер только для чтения; у каждой копии своя позиция, содержимое не копируется
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+}
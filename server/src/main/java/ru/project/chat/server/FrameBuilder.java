@@ -0,0 +1,116 @@
+package ru.project.chat.server;
+
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Кадр, который собирается по частям сразу в modified UTF-8, без промежуточных строк.
+// Буфер принадлежит сессии и переиспользуется, новым объектом становится только готовый кадр
+public class FrameBuilder {
+    private static final int MAX_LENGTH = 0xFFFF;
+
+    private byte[] buffer = new byte[512];
+    // первые два байта - длина, ее записывает build()
+    private int position = 2;
+
+    public FrameBuilder reset() {
+        position = 2;
+        return this;
+    }
+
+    // Уже закодированные байты, например метка времени из MessageClock
+    public FrameBuilder append(byte[] encoded) {
+        ensureCapacity(encoded.length);
+        System.arraycopy(encoded, 0, buffer, position, encoded.length);
+        position += encoded.length;
+        return this;
+    }
+
+    public FrameBuilder append(String string) {
+        return append(string, 0, string.length());
+    }
+
+    public FrameBuilder append(String string, int start, int end) {
+        ensureCapacity((end - start) * 3);
+        byte[] bytes = buffer;
+        int position = this.position;
+        for (int i = start; i < end; i++) {
+            char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes[position++] = (byte) c;
+            } else if (c > 0x07FF) {
+                bytes[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.position = position;
+        return this;
+    }
+
+    // Строка в обычном UTF-8 (поле бинарной команды) от клиента. Если байты - корректный UTF-8 из символов BMP
+    // без нулевого символа, они совпадают с modified UTF-8 и копируются как есть. Иначе (нулевой символ,
+    // символы за пределами BMP или поврежденные последовательности) строка перекодируется через String:
+    // поврежденные последовательности заменяются на U+FFFD, и получатель всегда может прочитать кадр
+    public FrameBuilder appendUtf8(byte[] array, int start, int end) {
+        if (!isModifiedUtf8(array, start, end)) {
+            return append(new String(array, start, end - start, StandardCharsets.UTF_8));
+        }
+        ensureCapacity(end - start);
+        System.arraycopy(array, start, buffer, position, end - start);
+        position += end - start;
+        return this;
+    }
+
+    // Корректные последовательности из одного-трех байт без нулевого символа, длинных форм и суррогатов
+    private static boolean isModifiedUtf8(byte[] array, int start, int end) {
+        int i = start;
+        while (i < end) {
+            int b = array[i] & 0xFF;
+            if (b >= 0x01 && b <= 0x7F) {
+                i++;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                if (end - i < 2 || !isContinuation(array[i + 1])) {
+                    return false;
+                }
+                i += 2;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                if (end - i < 3 || !isContinuation(array[i + 1]) || !isContinuation(array[i + 2])) {
+                    return false;
+                }
+                int second = array[i + 1] & 0xFF;
+                // E0 80..9F - длинная форма, ED A0..BF - суррогаты
+                if ((b == 0xE0 && second < 0xA0) || (b == 0xED && second > 0x9F)) {
+                    return false;
+                }
+                i += 3;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    public Frame build() throws UTFDataFormatException {
+        int length = position - 2;
+        if (length > MAX_LENGTH) {
+            throw new UTFDataFormatException("Сообщение слишком длинное: " + length + " байт");
+        }
+        buffer[0] = (byte) (length >>> 8);
+        buffer[1] = (byte) length;
+        return Frame.ofEncoded(Arrays.copyOf(buffer, position));
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+}
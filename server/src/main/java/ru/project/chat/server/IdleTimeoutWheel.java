@@ -0,0 +1,153 @@
+package ru.project.chat.server;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Общий на весь сервер таймер неактивности клиентов (hashed wheel).
+// Сессия при каждом действии только записывает время в AtomicLong, а колесо раз в тик просматривает одну ячейку:
+// просроченные сессии отключает, остальные переносит в ячейку, соответствующую их новому сроку.
+// Колесо покрывает весь таймаут целиком, поэтому каждая сессия проверяется не чаще раза за таймаут.
+// В ячейках лежат не сами сессии, а записи Timeout: при отключении сессия снимается с записи (cancel),
+// и колесо больше не держит ни ее, ни ее сокет и очередь - в ячейке до своего тика остается только пустая запись
+@Log4j2
+public class IdleTimeoutWheel implements Runnable {
+    private final long timeoutMillis;
+    private final long tickMillis;
+    private final ArrayDeque<Timeout>[] slots;
+    private final Queue<Timeout> registered = new ConcurrentLinkedQueue<>();
+    // число отключенных по простою сессий
+    private final LongAdder expired;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long currentTick;
+
+    public IdleTimeoutWheel(long timeoutMillis, long tickMillis, LongAdder expired) {
+        if (timeoutMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("Таймаут и шаг таймера неактивности должны быть больше нуля: "
+                    + timeoutMillis + ", " + tickMillis);
+        }
+        long slotCount = timeoutMillis / tickMillis + 2;
+        if (slotCount > 1_000_000) {
+            throw new IllegalArgumentException("Слишком мелкий шаг таймера неактивности: " + tickMillis
+                    + " мс при таймауте " + timeoutMillis + " мс");
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = tickMillis;
+        this.expired = expired;
+        // массив параметризованного типа создать нельзя, ячейки заполняются только ArrayDeque<Timeout>
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Timeout>[] slots = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[(int) slotCount];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.slots = slots;
+        this.thread = new Thread(this, "idle-timeout-wheel");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Запись нужно отменить, когда сессия отключается
+    public Timeout register(Session session) {
+        Timeout timeout = new Timeout(session);
+        registered.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.currentTimeMillis();
+        while (running) {
+            long nextTickTime = startTime + (currentTick + 1) * tickMillis;
+            long sleepMillis = nextTickTime - System.currentTimeMillis();
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            currentTick++;
+            long now = System.currentTimeMillis();
+
+            Timeout timeout;
+            while ((timeout = registered.poll()) != null) {
+                Session session = timeout.session;
+                if (session != null) {
+                    schedule(timeout, session, now);
+                }
+            }
+            expire(slots[(int) (currentTick % slots.length)], now);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> slot, long now) {
+        int size = slot.size();
+        for (int i = 0; i < size; i++) {
+            Timeout timeout = slot.poll();
+            Session session = timeout.session;
+            if (session == null || !session.isConnected()) {
+                continue;
+            }
+            if (now - session.getLastActivityTime() >= timeoutMillis) {
+                timeout.session = null;
+                log.info("Превышено время ожидания действий от клиента " + session.getNickname());
+                expired.increment();
+                try {
+                    session.disconnect();
+                } catch (RuntimeException e) {
+                    log.error("Не удалось отключить клиента " + session.getNickname(), e);
+                }
+            } else {
+                schedule(timeout, session, now);
+            }
+        }
+    }
+
+    private void schedule(Timeout timeout, Session session, long now) {
+        long delay = session.getLastActivityTime() + timeoutMillis - now;
+        long ticks = Math.max(1, (delay + tickMillis - 1) / tickMillis);
+        ticks = Math.min(ticks, slots.length - 1);
+        slots[(int) ((currentTick + ticks) % slots.length)].add(timeout);
+    }
+
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    // Сессия, за неактивностью которой следит колесо
+    public interface Session {
+        long getLastActivityTime();
+
+        boolean isConnected();
+
+        String getNickname();
+
+        void disconnect();
+    }
+
+    // Место сессии в колесе
+    public static final class Timeout {
+        private volatile Session session;
+
+        private Timeout(Session session) {
+            this.session = session;
+        }
+
+        // Колесо отпускает сессию и больше ее не проверяет
+        public void cancel() {
+            session = null;
+        }
+
+        public boolean isCancelled() {
+            return session == null;
+        }
+    }
+}
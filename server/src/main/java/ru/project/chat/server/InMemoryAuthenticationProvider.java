@@ -0,0 +1,91 @@
+package ru.project.chat.server;
+
+import ru.project.chat.server.model.Role;
+import ru.project.chat.server.model.RoleName;
+import ru.project.chat.server.model.User;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static ru.project.chat.server.model.RoleName.ADMIN;
+
+// Пользователи хранятся только в памяти, база не нужна. Используется для замеров и нагрузочных прогонов
+public class InMemoryAuthenticationProvider implements AuthenticationProvider {
+    private final UserCache users = new UserCache();
+    private final PasswordHasher hasher;
+    private final VerifiedCredentials verifiedCredentials = new VerifiedCredentials(300_000, 10_000);
+
+    public InMemoryAuthenticationProvider() {
+        this(PasswordHasher.DEFAULT_ITERATIONS);
+    }
+
+    // Нагрузочным прогонам, где вход не проверяется, можно задать меньше итераций PBKDF2
+    public InMemoryAuthenticationProvider(int passwordHashIterations) {
+        this.hasher = new PasswordHasher(passwordHashIterations);
+        users.add(new User("admin", hasher.hash("admin"), "admin", new Role(1, ADMIN)));
+    }
+
+    @Override
+    public String getNicknameByLoginAndPassword(String login, String password) {
+        User user = users.getByLogin(login);
+        String stored = user != null ? user.getPassword() : null;
+        if (stored != null && verifiedCredentials.isVerified(login, password, stored)) {
+            return user.getNickname();
+        }
+        if (!hasher.verify(password, stored)) {
+            return null;
+        }
+        verifiedCredentials.put(login, password, stored);
+        return user.getNickname();
+    }
+
+    @Override
+    public boolean register(String login, String password, String nickname) {
+        if (users.getByLogin(login) != null || users.getByNickname(nickname) != null) {
+            return false;
+        }
+        return users.add(new User(login, hasher.hash(password), nickname, new Role(2, RoleName.USER)));
+    }
+
+    @Override
+    public boolean isCurrentUserAdmin(String nickname) {
+        User user = users.getByNickname(nickname);
+        return user != null && (user.getRoleMask() & ADMIN.mask()) != 0;
+    }
+
+    @Override
+    public int getRoleMask(String nickname) {
+        User user = users.getByNickname(nickname);
+        return user == null ? 0 : user.getRoleMask();
+    }
+
+    @Override
+    public long getBanDeadline(String nickname) {
+        User user = users.getByNickname(nickname);
+        return user == null ? 0 : user.getBanDeadlineMillis();
+    }
+
+    @Override
+    public void banUser(String nicknameForBan, long minutesBan) {
+        User user = users.getByNickname(nicknameForBan);
+        if (user != null) {
+            LocalDateTime startBanDateTime = LocalDateTime.now();
+            user.setStartBanDateTime(startBanDateTime);
+            user.setEndBanDateTime(minutesBan == 0 ? LocalDateTime.MAX : startBanDateTime.plusMinutes(minutesBan));
+        }
+    }
+
+    @Override
+    public long getMinutesUntilTheEndBan(String nickname) {
+        User user = users.getByNickname(nickname);
+        if (user != null && user.getEndBanDateTime() != null) {
+            return Duration.between(LocalDateTime.now(), user.getEndBanDateTime()).toMinutes();
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean changeNickname(String oldNickname, String newNickname) {
+        return users.rename(oldNickname, newNickname);
+    }
+}
@@ -0,0 +1,33 @@
+package ru.project.chat.server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Время в строке чата "yyyy-MM-dd HH:mm:ss ". Форматируется не чаще раза в секунду, и одни и те же байты
+// получают все сессии. Если два потока одновременно перешли на новую секунду, оба ее отформатируют - это не страшно
+public final class MessageClock {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss ");
+
+    private static volatile Second current = new Second(Long.MIN_VALUE, null);
+
+    private MessageClock() {
+    }
+
+    // Метка времени для nowMillis в modified UTF-8 (только ASCII) вместе с пробелом после нее
+    public static byte[] timestamp(long nowMillis) {
+        long epochSecond = Math.floorDiv(nowMillis, 1000);
+        Second second = current;
+        if (second.epochSecond != epochSecond) {
+            LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault());
+            second = new Second(epochSecond, FORMATTER.format(dateTime).getBytes(StandardCharsets.US_ASCII));
+            current = second;
+        }
+        return second.timestamp;
+    }
+
+    private record Second(long epochSecond, byte[] timestamp) {
+    }
+}
@@ -0,0 +1,140 @@
+package ru.project.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ограниченная очередь исходящих сообщений одного клиента.
+// Пишут в нее все потоки сервера, а забирает только писатель этого клиента
+public class OutboundQueue<T> {
+    private final ArrayDeque<T> items = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final LongAdder droppedTotal;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long dropped;
+    private boolean closed;
+
+    public OutboundQueue(int capacity, OverflowPolicy overflowPolicy, LongAdder droppedTotal) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.droppedTotal = droppedTotal;
+    }
+
+    // false - очередь переполнена и по политике DISCONNECT клиента нужно отключить
+    public boolean offer(T item) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (items.size() >= capacity) {
+                if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                    return false;
+                }
+                items.poll();
+                dropped++;
+                droppedTotal.increment();
+            }
+            items.add(item);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ждет очередное сообщение, null - очередь закрыта и все сообщения из нее уже забраны
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return items.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public T poll() {
+        lock.lock();
+        try {
+            return items.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ждет сообщение не дольше timeout, null - не дождались или очередь закрыта
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed && remaining > 0) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return items.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Забирает до max сообщений за одну блокировку, возвращает сколько забрано
+    public int drainTo(Collection<? super T> target, int max) {
+        lock.lock();
+        try {
+            int count = 0;
+            T item;
+            while (count < max && (item = items.poll()) != null) {
+                target.add(item);
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Выбросить все накопленное, счетчик потерь не меняется
+    public void clear() {
+        lock.lock();
+        try {
+            items.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
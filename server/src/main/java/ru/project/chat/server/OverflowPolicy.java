@@ -0,0 +1,7 @@
+package ru.project.chat.server;
+
+// Что делать, если клиент не успевает забирать сообщения и его очередь заполнена
+public enum OverflowPolicy {
+    DROP_OLDEST,
+    DISCONNECT
+}
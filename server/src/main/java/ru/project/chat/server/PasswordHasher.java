@@ -0,0 +1,78 @@
+package ru.project.chat.server;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+// Хэширование паролей PBKDF2WithHmacSHA512 из JDK. Пароль хранится строкой pbkdf2$итерации$соль$хэш (Base64),
+// поэтому число итераций можно поднять, не ломая старые хэши. Пароль без префикса остался от версии,
+// где пароли хранились как есть: он сравнивается напрямую, после успешного входа его нужно перехэшировать
+public class PasswordHasher {
+    public static final int DEFAULT_ITERATIONS = 210_000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+    private static final String PREFIX = "pbkdf2$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    private final Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+    private final Base64.Decoder decoder = Base64.getDecoder();
+    // с этой солью считается хэш для несуществующего пользователя, чтобы ответ занимал столько же времени
+    private final byte[] dummySalt = new byte[SALT_BYTES];
+
+    public PasswordHasher(int iterations) {
+        this.iterations = iterations;
+        random.nextBytes(dummySalt);
+    }
+
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        return PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    // stored == null - пользователя нет, хэш все равно считается
+    public boolean verify(String password, String stored) {
+        if (stored == null) {
+            pbkdf2(password, dummySalt, iterations);
+            return false;
+        }
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            byte[] expected = decoder.decode(parts[3]);
+            byte[] actual = pbkdf2(password, decoder.decode(parts[2]), Integer.parseInt(parts[1]));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Пароль хранится как есть или захэширован с другим числом итераций
+    public boolean needsRehash(String stored) {
+        return !stored.startsWith(PREFIX + iterations + "$");
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " недоступен", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ru.project.chat.server;
+
+// Классы команд с отдельным ограничением частоты (server.ratelimit.<класс>.rate/burst)
+public enum RateLimitClass {
+    BROADCAST,
+    PRIVATE,
+    LIST,
+    AUTH,
+    // остальные команды пользователя: смена ника, комнаты
+    COMMAND;
+
+    // null - команда не ограничивается (выход, переключение протокола, команды админа)
+    public static RateLimitClass of(Command command) {
+        return switch (command) {
+            case MESSAGE -> BROADCAST;
+            case WRITE -> PRIVATE;
+            case LIST, ROOMS -> LIST;
+            case AUTH, REGISTER -> AUTH;
+            case CHANGE_NICK, JOIN, LEAVE -> COMMAND;
+            default -> null;
+        };
+    }
+
+    public String getKey() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,40 @@
+package ru.project.chat.server;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Комната чата: сообщение в комнату получают только ее участники, поэтому рассылка стоит O(размер комнаты).
+// Участников добавляет и удаляет Server, рассылка обходит множество без блокировок
+public class Room {
+    private final String name;
+    private final Set<ClientHandler> subscribers = ConcurrentHashMap.newKeySet();
+
+    public Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Collection<ClientHandler> getSubscribers() {
+        return subscribers;
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    public boolean isEmpty() {
+        return subscribers.isEmpty();
+    }
+
+    boolean add(ClientHandler client) {
+        return subscribers.add(client);
+    }
+
+    boolean remove(ClientHandler client) {
+        return subscribers.remove(client);
+    }
+}
@@ -1,37 +1,201 @@
 package ru.project.chat.server;
 
 import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.cluster.ClusterNode;
+import ru.project.chat.server.history.HistoryLog;
+import ru.project.chat.server.metrics.ServerMetrics;
+import ru.project.chat.server.metrics.ServerStats;
+import ru.project.chat.server.nio.NioServer;
 
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 @Log4j2
 public class Server {
+    // сколько ждать, пока писатель отправит оставшиеся сообщения, прежде чем закрыть сокет принудительно
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000L;
+
+    private final ServerConfig config;
     private int port;
     private Map<String, ClientHandler> clients;
+    // комнаты по имени; комната создается при первом входе и удаляется, когда из нее вышел последний участник
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
     private final AuthenticationProvider authenticationProvider;
     private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private final ThreadFactory sessionThreadFactory;
+    private final IdleTimeoutWheel idleTimeoutWheel;
+    // принудительное закрытие сокетов и уведомления об отключении клиентов
+    private final ConnectionSweeper connectionSweeper;
+    // вход и регистрация: проверка пароля занимает процессор, поэтому число потоков и очередь ограничены
+    private final ThreadPoolExecutor authExecutor;
+    // команды, которые ждут базу или останавливают сервер, чтобы не держать поток чтения (селектор в режиме nio)
+    private final ThreadPoolExecutor commandExecutor;
+    // сообщения, выброшенные из переполненных очередей клиентов
+    private final LongAdder droppedMessages = new LongAdder();
+    // клиенты, отключенные из-за переполнения очереди
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+    // метрики этого сервера, у каждого узла в процессе свои
+    private final ServerMetrics metrics;
+    private final ServerStats stats;
+    // история сообщений, создается при запуске сервера, если включена
+    private HistoryLog history;
+    // узел кластера, null - сервер работает один
+    private volatile ClusterNode cluster;
+
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
 
     public AuthenticationProvider getAuthenticationProvider() {
         return authenticationProvider;
     }
 
-    public Server(int port, AuthenticationProvider authenticationProvider) {
-        this.port = port;
+    // Потоки для чтения сообщений клиента
+    public ThreadFactory getSessionThreadFactory() {
+        return sessionThreadFactory;
+    }
+
+    public IdleTimeoutWheel getIdleTimeoutWheel() {
+        return idleTimeoutWheel;
+    }
+
+    public ConnectionSweeper getConnectionSweeper() {
+        return connectionSweeper;
+    }
+
+    public LongAdder getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    public LongAdder getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects;
+    }
+
+    // Суммарное число сообщений, ожидающих отправки во всех очередях клиентов
+    public long getOutboundQueueDepth() {
+        long depth = 0;
+        for (ClientHandler client : clients.values()) {
+            depth += client.getConnection().getQueueDepth();
+        }
+        return depth;
+    }
+
+    public Server(ServerConfig config, AuthenticationProvider authenticationProvider) {
+        this(config, authenticationProvider, new ServerMetrics());
+    }
+
+    public Server(ServerConfig config, AuthenticationProvider authenticationProvider, ServerMetrics metrics) {
+        this.config = config;
+        this.port = config.getPort();
         clients = new ConcurrentHashMap<>();
         this.authenticationProvider = authenticationProvider;
+        this.metrics = metrics;
+        this.stats = new ServerStats(this, metrics);
+        if (config.getConnectionMode() == ConnectionMode.VIRTUAL) {
+            sessionThreadFactory = Thread.ofVirtual().name("session-", 0).factory();
+        } else {
+            sessionThreadFactory = Thread.ofPlatform().name("session-", 0).factory();
+        }
+        idleTimeoutWheel = new IdleTimeoutWheel(config.getIdleTimeoutMillis(), config.getIdleTickMillis(),
+                metrics.getIdleDisconnects());
+        connectionSweeper = new ConnectionSweeper(CLOSE_TIMEOUT_MILLIS, this::notifyDeparture);
+        int authThreads = config.getAuthThreads() > 0
+                ? config.getAuthThreads() : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        authExecutor = new ThreadPoolExecutor(authThreads, authThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getAuthQueueCapacity()),
+                Thread.ofPlatform().name("auth-", 0).daemon().factory());
+        commandExecutor = new ThreadPoolExecutor(config.getCommandThreads(), config.getCommandThreads(),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.getCommandQueueCapacity()),
+                Thread.ofPlatform().name("command-", 0).daemon().factory());
+    }
+
+    // Вход или регистрация клиента, false - очередь пула заполнена и задача не принята
+    public boolean submitAuth(Runnable task) {
+        try {
+            authExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            metrics.getAuthRejected().increment();
+            return false;
+        }
+    }
+
+    // Команда клиента, которая обращается к базе или останавливает сервер, false - очередь пула заполнена
+    public boolean submitCommand(Runnable task) {
+        try {
+            commandExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public int getAuthQueueDepth() {
+        return authExecutor.getQueue().size();
     }
 
     public void start() {
+        idleTimeoutWheel.start();
+        connectionSweeper.start();
+        // по имени узла: несколько узлов в одном процессе не заменяют MBean друг друга
+        ServerMetrics.register("type=Server,node=" + config.getClusterNode(), stats);
+        metrics.register(config.getClusterNode());
         try {
+            if (config.isHistoryEnabled()) {
+                history = new HistoryLog(Path.of(config.getHistoryDirectory()), config.getHistorySegmentBytes(),
+                        config.getHistoryMaxBytes(), config.getHistoryRetentionMillis());
+            }
+            if (config.getClusterPort() > 0) {
+                ClusterNode node = new ClusterNode(this, config);
+                node.start();
+                cluster = node;
+            }
+            if (config.getConnectionMode() == ConnectionMode.NIO) {
+                nioServer = new NioServer(this, port, config.getNioThreads());
+                nioServer.start();
+                return;
+            }
             serverSocket = new ServerSocket(port);
-            log.info("Сервер запущен на порту " + port);
+            log.info("Сервер (" + config.getConnectionMode() + ") запущен на порту " + port);
             while (true) {
                 Socket socket = serverSocket.accept();
-                new ClientHandler(socket, this);
+                // ошибка одного соединения (например, клиент сбросил его сразу после подключения)
+                // не должна останавливать прием остальных
+                try {
+                    configureSocket(socket);
+                    new ClientHandler(socket, this);
+                } catch (IOException e) {
+                    log.warn("Не удалось принять подключение " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                    try {
+                        socket.close();
+                    } catch (IOException ex) {
+                        log.warn(ex.getMessage());
+                    }
+                }
             }
         } catch (IOException e) {
             log.error(e);
@@ -40,8 +204,23 @@ public class Server {
         }
     }
 
+    // Параметры сокета клиента из server.socket.*, размер буфера 0 - оставить по умолчанию ОС
+    public void configureSocket(Socket socket) throws IOException {
+        socket.setTcpNoDelay(config.isTcpNoDelay());
+        if (config.getSendBufferBytes() > 0) {
+            socket.setSendBufferSize(config.getSendBufferBytes());
+        }
+        if (config.getReceiveBufferBytes() > 0) {
+            socket.setReceiveBufferSize(config.getReceiveBufferBytes());
+        }
+    }
+
     public void subscribe(ClientHandler clientHandler) {
         clients.put(clientHandler.getNickname(), clientHandler);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.userJoined(clientHandler.getNickname());
+        }
         String message = clientHandler.getNickname() + " вошел в чат";
         if (!"admin".equals(clientHandler.getNickname())) {
             broadcastMessage(message);
@@ -49,45 +228,288 @@ public class Server {
         log.info(message);
     }
 
+    // Сообщение кодируется один раз, всем получателям уходит один и тот же кадр
     public void broadcastMessage(String message) {
-        for (ClientHandler client : clients.values()) {
-            client.sendMessage(message);
+        Frame frame = encode(message);
+        if (frame != null) {
+            broadcastFrame(frame);
         }
     }
 
-    public void sendMessageToUser(List<String> nicknames, String message) {
-        for (ClientHandler client : clients.values()) {
-            for (String nickname : nicknames) {
-                if (nickname.equals(client.getNickname())) {
-                    client.sendMessage(message);
+    public void broadcastFrame(Frame frame) {
+        fanOut(clients.values(), frame, -1);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.broadcast(frame);
+        }
+    }
+
+    // Служебное сообщение всем, пришедшее от другого узла кластера: только своим клиентам
+    public void deliverBroadcast(Frame frame) {
+        fanOut(clients.values(), frame, -1);
+    }
+
+    // historySeq - номер сообщения в истории, -1 - не сохранено
+    private void fanOut(Collection<ClientHandler> recipients, Frame frame, long historySeq) {
+        long startNanos = System.nanoTime();
+        int count = 0;
+        for (ClientHandler client : recipients) {
+            client.sendFrame(frame, historySeq);
+            count++;
+        }
+        metrics.getMessagesOut().add(count);
+        metrics.getBroadcastFanOut().recordSince(startNanos);
+    }
+
+    // Сообщение пользователя в комнату: получают только участники комнаты.
+    // В историю попадают только сообщения комнаты по умолчанию, при входе пользователь оказывается в ней
+    public void publishMessage(String roomName, Frame frame) {
+        deliverToRoom(roomName, frame, true);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.publish(roomName, frame);
+        }
+    }
+
+    // Доставка участникам комнаты на этом узле; сообщения от других узлов кластера приходят сразу сюда.
+    // Сообщение сохраняется до рассылки: кто вошел в комнату позже, получит его либо в истории, либо вживую
+    public void deliverToRoom(String roomName, Frame frame, boolean store) {
+        long historySeq = store && roomName.equals(config.getDefaultRoom()) ? appendHistory(frame, null) : -1;
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            fanOut(room.getSubscribers(), frame, historySeq);
+        }
+    }
+
+    public void publishMessage(String message) {
+        Frame frame = encode(message);
+        if (frame != null) {
+            publishMessage(config.getDefaultRoom(), frame);
+        }
+    }
+
+    // Служебное сообщение участникам комнаты, в историю не попадает
+    public void notifyRoom(String roomName, String message) {
+        Frame frame = encode(message);
+        if (frame == null) {
+            return;
+        }
+        deliverToRoom(roomName, frame, false);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.notifyRoom(roomName, frame);
+        }
+    }
+
+    // Вход в комнату, комната создается при первом входе. false - клиент уже в комнате
+    public boolean joinRoom(ClientHandler clientHandler, String roomName) {
+        boolean[] added = new boolean[1];
+        rooms.compute(roomName, (name, room) -> {
+            Room target = room != null ? room : new Room(name);
+            added[0] = target.add(clientHandler);
+            return target;
+        });
+        return added[0];
+    }
+
+    // Выход из комнаты. Опустевшая комната удаляется под блокировкой ее ключа в rooms, поэтому
+    // одновременный вход в нее либо попадет в старую комнату и она останется, либо создаст новую
+    public boolean leaveRoom(ClientHandler clientHandler, String roomName) {
+        Room room = rooms.get(roomName);
+        if (room == null || !room.remove(clientHandler)) {
+            return false;
+        }
+        if (room.isEmpty()) {
+            rooms.computeIfPresent(roomName, (name, current) -> current.isEmpty() ? null : current);
+        }
+        return true;
+    }
+
+    // Комнаты с числом участников, по имени
+    public List<String> getRoomList() {
+        List<String> roomList = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (!room.isEmpty()) {
+                roomList.add(room.getName() + " (" + room.size() + ")");
+            }
+        }
+        Collections.sort(roomList);
+        return roomList;
+    }
+
+    // Личное сообщение: доставляется и сохраняется в историю только для отправителя и получателя.
+    // В истории адресаты записаны логинами: ник после /changenick может занять другой пользователь.
+    // Если получатель на другом узле кластера, сообщение уходит только этому узлу.
+    // false - получателя нет в чате, сообщение не отправлено
+    public boolean sendPrivateMessage(ClientHandler sender, String recipient, Frame frame) {
+        ClientHandler target = clients.get(recipient);
+        List<String> audience;
+        if (target != null) {
+            audience = target == sender ? List.of(sender.getLogin()) : List.of(target.getLogin(), sender.getLogin());
+        } else {
+            ClusterNode cluster = this.cluster;
+            if (cluster == null || !cluster.sendPrivate(sender.getNickname(), recipient, frame)) {
+                return false;
+            }
+            audience = List.of(sender.getLogin());
+        }
+        long historySeq = appendHistory(frame, audience);
+        if (target != null && target != sender) {
+            target.sendFrame(frame, historySeq);
+            metrics.getMessagesOut().increment();
+        }
+        sender.sendFrame(frame, historySeq);
+        metrics.getMessagesOut().increment();
+        return true;
+    }
+
+    // Личное сообщение с другого узла кластера для пользователя этого узла
+    public void deliverPrivate(String sender, String recipient, Frame frame) {
+        ClientHandler client = clients.get(recipient);
+        if (client == null) {
+            return;
+        }
+        long historySeq = appendHistory(frame, List.of(client.getLogin()));
+        metrics.getMessagesOut().increment();
+        client.sendFrame(frame, historySeq);
+    }
+
+    // Номер сообщения в истории, -1 - история выключена или сообщение не сохранено
+    private long appendHistory(Frame frame, List<String> audience) {
+        return history != null ? history.append(frame, audience) : -1;
+    }
+
+    // Включена ли отправка истории при входе
+    public boolean isHistoryReplayEnabled() {
+        return history != null && config.getHistoryReplayMessages() > 0;
+    }
+
+    // Последние сообщения из истории, видимые пользователю, одним кадром. Клиент к этому времени уже подписан,
+    // а кадры для него придержаны (ClientHandler.holdFrames): история отправляется до номера, замеченного
+    // после подписки, а из придержанных кадров отбрасываются те, что в нее вошли
+    public void replayHistory(ClientHandler clientHandler) {
+        HistoryLog.Replay replay = history.replay(clientHandler.getLogin(), config.getHistoryReplayMessages(),
+                history.getAppendSeq());
+        clientHandler.releaseFrames(replay.frame(), replay.upToSeq());
+    }
+
+    // Сообщение нескольким пользователям: кодируется один раз, получатели ищутся по нику в clients.
+    // Возвращает ники получателей, которых нет в чате
+    public List<String> sendMessageToUser(List<String> nicknames, String message) {
+        Frame frame = encode(message);
+        if (frame == null) {
+            return List.of();
+        }
+        return sendFrameToUser(nicknames, frame);
+    }
+
+    private List<String> sendFrameToUser(List<String> nicknames, Frame frame) {
+        List<String> offline = null;
+        int delivered = 0;
+        for (String nickname : nicknames) {
+            ClientHandler client = clients.get(nickname);
+            if (client == null) {
+                if (offline == null) {
+                    offline = new ArrayList<>();
                 }
+                offline.add(nickname);
+                continue;
             }
+            client.sendFrame(frame);
+            delivered++;
+        }
+        metrics.getMessagesOut().add(delivered);
+        return offline == null ? List.of() : offline;
+    }
+
+    private Frame encode(String message) {
+        try {
+            return Frame.of(message);
+        } catch (UTFDataFormatException e) {
+            log.warn(e.getMessage());
+            return null;
         }
     }
 
     public void unsubscribe(ClientHandler clientHandler) {
-        for (String nickname : clients.keySet()) {
-            if (clientHandler.getNickname().equals(nickname)) {
-                clients.remove(clientHandler.getNickname());
-                String message = clientHandler.getNickname() + " вышел из чата";
-                broadcastMessage(message);
-                log.info(message);
+        String nickname = clientHandler.getNickname();
+        for (String roomName : clientHandler.getRooms()) {
+            leaveRoom(clientHandler, roomName);
+        }
+        if (nickname != null && clients.remove(nickname, clientHandler)) {
+            ClusterNode cluster = this.cluster;
+            if (cluster != null) {
+                cluster.userLeft(nickname);
             }
+            connectionSweeper.departed(nickname);
         }
     }
 
+    // Вызывается ConnectionSweeper после отключения, не изнутри рассылки, в которой клиента отключили
+    private void notifyDeparture(String nickname) {
+        String message = nickname + " вышел из чата";
+        broadcastMessage(message);
+        log.info(message);
+    }
+
+    // Пользователи всего кластера: сначала этого узла, затем остальных
     public List<String> getUserList() {
+        List<String> users = getLocalUsers();
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            users.addAll(cluster.getRemoteUsers());
+        }
+        return users;
+    }
+
+    // Пользователь уже вошел на другом узле кластера
+    public boolean isActiveOnOtherNode(String nickname) {
+        ClusterNode cluster = this.cluster;
+        return cluster != null && cluster.isRemoteUser(nickname);
+    }
+
+    public List<String> getLocalUsers() {
         return new ArrayList<>(clients.keySet());
     }
 
+    public int getSessionCount() {
+        return clients.size();
+    }
+
+    // Пользователя на другом узле кластера отключит его узел, тогда возвращается null
     public ClientHandler getClientForKick(String nicknameForKick) {
-        for (ClientHandler client : clients.values()) {
-            if (nicknameForKick.equals(client.getNickname())) {
-                client.disconnect();
-                return client;
-            }
+        ClientHandler client = kickLocal(nicknameForKick);
+        ClusterNode cluster = this.cluster;
+        if (client == null && cluster != null) {
+            cluster.kick(nicknameForKick);
+        }
+        return client;
+    }
+
+    public ClientHandler kickLocal(String nickname) {
+        ClientHandler client = clients.get(nickname);
+        if (client != null) {
+            client.disconnect();
+        }
+        return client;
+    }
+
+    // Бан сразу попадает в снимок прав сессии забаненного пользователя, если он сейчас в чате,
+    // и рассылается остальным узлам кластера
+    public void banUser(String nickname, long minutesBan) {
+        applyBan(nickname, minutesBan);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.ban(nickname, minutesBan);
+        }
+    }
+
+    public void applyBan(String nickname, long minutesBan) {
+        authenticationProvider.banUser(nickname, minutesBan);
+        ClientHandler client = clients.get(nickname);
+        if (client != null) {
+            client.setBanDeadline(authenticationProvider.getBanDeadline(nickname));
         }
-        return null;
     }
 
     public void shutdownServer() throws IOException {
@@ -95,7 +517,24 @@ public class Server {
             client.disconnect();
         }
 
-        serverSocket.close();
+        idleTimeoutWheel.close();
+        connectionSweeper.close();
+        authExecutor.shutdownNow();
+        // без прерывания: /shutdown сам выполняется в этом пуле
+        commandExecutor.shutdown();
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (history != null) {
+            history.close();
+        }
+        authenticationProvider.shutdown();
+        metrics.close();
+        if (nioServer != null) {
+            nioServer.close();
+        } else {
+            serverSocket.close();
+        }
         log.info("Stopped server");
 
         try {
@@ -107,11 +546,20 @@ public class Server {
         System.exit(0);
     }
 
+    // Сначала ник меняется в кэше пользователей (там проверяется уникальность), и только потом в списке клиентов
     public boolean changeNickname(ClientHandler clientHandler, String newNickname) {
         String oldNickname = clientHandler.getNickname();
-        clients.remove(oldNickname);
+        if (!authenticationProvider.changeNickname(oldNickname, newNickname)) {
+            return false;
+        }
+        clients.remove(oldNickname, clientHandler);
         clientHandler.setNickname(newNickname);
         clients.put(newNickname, clientHandler);
-        return authenticationProvider.changeNickname(oldNickname, newNickname);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.userLeft(oldNickname);
+            cluster.userJoined(newNickname);
+        }
+        return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+package ru.project.chat.server;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.ResourceBundle;
+
+@Getter
+public class ServerConfig {
+    private final int port;
+    private final ConnectionMode connectionMode;
+    private final int nioThreads;
+    private final long idleTimeoutMillis;
+    private final long idleTickMillis;
+    private final int outboundQueueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final boolean historyEnabled;
+    private final String historyDirectory;
+    private final int historySegmentBytes;
+    private final long historyMaxBytes;
+    private final long historyRetentionMillis;
+    private final int historyReplayMessages;
+    private final String defaultRoom;
+    private final boolean rateLimitEnabled;
+    // команд в секунду и размер пачки для каждого RateLimitClass, по ordinal
+    private final double[] rateLimits;
+    private final int[] rateBursts;
+    private final int muteThreshold;
+    private final long muteMillis;
+    private final int outputBufferBytes;
+    private final long flushDelayNanos;
+    private final boolean tcpNoDelay;
+    private final int sendBufferBytes;
+    private final int receiveBufferBytes;
+    // 0 - половина процессоров
+    private final int authThreads;
+    private final int authQueueCapacity;
+    private final int commandThreads;
+    private final int commandQueueCapacity;
+    private final String clusterNode;
+    private final String clusterHost;
+    // 0 - кластер выключен
+    private final int clusterPort;
+    private final String clusterSecret;
+    private final List<String> clusterPeers;
+    private final int clusterQueueCapacity;
+    private final long clusterReconnectMillis;
+
+    public ServerConfig(Properties properties) {
+        this.port = Integer.parseInt(properties.getProperty("server.port"));
+        this.connectionMode = ConnectionMode.valueOf(properties.getProperty("server.mode").toUpperCase());
+        this.nioThreads = Integer.parseInt(properties.getProperty("server.nio.threads"));
+        this.idleTimeoutMillis = Long.parseLong(properties.getProperty("server.idle.timeout.seconds")) * 1000;
+        this.idleTickMillis = Long.parseLong(properties.getProperty("server.idle.tick.millis"));
+        this.outboundQueueCapacity = Integer.parseInt(properties.getProperty("server.outbound.queue.capacity"));
+        this.overflowPolicy = OverflowPolicy.valueOf(properties.getProperty("server.outbound.overflow.policy").toUpperCase());
+        this.historyEnabled = Boolean.parseBoolean(properties.getProperty("server.history.enabled"));
+        this.historyDirectory = properties.getProperty("server.history.dir");
+        this.historySegmentBytes = Integer.parseInt(properties.getProperty("server.history.segment.megabytes")) * 1024 * 1024;
+        this.historyMaxBytes = Long.parseLong(properties.getProperty("server.history.max.megabytes")) * 1024 * 1024;
+        this.historyRetentionMillis = Long.parseLong(properties.getProperty("server.history.retention.hours")) * 3_600_000;
+        this.historyReplayMessages = Integer.parseInt(properties.getProperty("server.history.replay.messages"));
+        this.defaultRoom = properties.getProperty("server.rooms.default");
+        this.rateLimitEnabled = Boolean.parseBoolean(properties.getProperty("server.ratelimit.enabled"));
+        this.rateLimits = new double[RateLimitClass.values().length];
+        this.rateBursts = new int[RateLimitClass.values().length];
+        for (RateLimitClass limitClass : RateLimitClass.values()) {
+            String prefix = "server.ratelimit." + limitClass.getKey();
+            rateLimits[limitClass.ordinal()] = Double.parseDouble(properties.getProperty(prefix + ".rate"));
+            rateBursts[limitClass.ordinal()] = Integer.parseInt(properties.getProperty(prefix + ".burst"));
+        }
+        this.muteThreshold = Integer.parseInt(properties.getProperty("server.ratelimit.mute.threshold"));
+        this.muteMillis = Long.parseLong(properties.getProperty("server.ratelimit.mute.seconds")) * 1000;
+        this.outputBufferBytes = Integer.parseInt(properties.getProperty("server.output.buffer.bytes"));
+        this.flushDelayNanos = Long.parseLong(properties.getProperty("server.output.flush.delay.micros")) * 1000;
+        this.tcpNoDelay = Boolean.parseBoolean(properties.getProperty("server.socket.tcp.nodelay"));
+        this.sendBufferBytes = Integer.parseInt(properties.getProperty("server.socket.send.buffer.bytes"));
+        this.receiveBufferBytes = Integer.parseInt(properties.getProperty("server.socket.receive.buffer.bytes"));
+        this.authThreads = Integer.parseInt(properties.getProperty("server.auth.threads"));
+        this.authQueueCapacity = Integer.parseInt(properties.getProperty("server.auth.queue.capacity"));
+        this.commandThreads = Integer.parseInt(properties.getProperty("server.command.threads"));
+        this.commandQueueCapacity = Integer.parseInt(properties.getProperty("server.command.queue.capacity"));
+        this.clusterNode = properties.getProperty("server.cluster.node");
+        this.clusterHost = properties.getProperty("server.cluster.host");
+        this.clusterPort = Integer.parseInt(properties.getProperty("server.cluster.port"));
+        this.clusterSecret = properties.getProperty("server.cluster.secret");
+        this.clusterPeers = new ArrayList<>();
+        for (String peer : properties.getProperty("server.cluster.peers").split(",")) {
+            if (!peer.isBlank()) {
+                clusterPeers.add(peer.trim());
+            }
+        }
+        this.clusterQueueCapacity = Integer.parseInt(properties.getProperty("server.cluster.queue.capacity"));
+        this.clusterReconnectMillis = Long.parseLong(properties.getProperty("server.cluster.reconnect.millis"));
+    }
+
+    // Настройки из server.properties, любую можно переопределить через -Dключ=значение
+    public static ServerConfig load() {
+        return load(new Properties());
+    }
+
+    public static ServerConfig load(Properties overrides) {
+        ResourceBundle resource = ResourceBundle.getBundle("server");
+        Properties properties = new Properties();
+        for (String key : resource.keySet()) {
+            properties.setProperty(key, System.getProperty(key, resource.getString(key)));
+        }
+        properties.putAll(overrides);
+        return new ServerConfig(properties);
+    }
+}
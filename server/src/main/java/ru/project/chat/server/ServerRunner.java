@@ -4,7 +4,8 @@ import java.sql.SQLException;
 
 public class ServerRunner {
     public static void main(String[] args) throws SQLException {
-        Server server = new Server(8080, new DatabaseAuthenticationProvider());
+        ServerConfig config = ServerConfig.load();
+        Server server = new Server(config, new DatabaseAuthenticationProvider(config.getClusterPort() > 0));
         server.start();
     }
 }
\ No newline at end of file
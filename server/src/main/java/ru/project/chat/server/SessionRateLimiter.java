@@ -0,0 +1,73 @@
+package ru.project.chat.server;
+
+// Ограничение частоты команд одной сессии: на каждый класс команд свой token bucket.
+// Жетоны пополняются со скоростью rate в секунду, но не больше burst; команда забирает один жетон.
+// Если отклонено muteThreshold команд подряд, сессия замолкает на muteNanos: все ограничиваемые команды
+// отбрасываются без ответа. Экземпляр принадлежит сессии и вызывается только из потока, читающего ее сообщения,
+// поэтому обходится без синхронизации и не выделяет память на проверку
+public class SessionRateLimiter {
+    private final double[] tokensPerNano;
+    private final int[] burst;
+    private final double[] tokens;
+    private final long[] refillTime;
+    private final int muteThreshold;
+    private final long muteNanos;
+    private int rejectedInRow;
+    private boolean muted;
+    private long mutedUntil;
+
+    public enum Result {
+        ALLOWED,
+        // команда отклонена, первая в серии: клиенту стоит об этом сказать
+        THROTTLED,
+        // команда отклонена молча: серия продолжается или сессия замолчала раньше
+        DROPPED,
+        // команда отклонена, и сессия только что замолчала
+        MUTED
+    }
+
+    public SessionRateLimiter(ServerConfig config, long nowNanos) {
+        int classes = RateLimitClass.values().length;
+        tokensPerNano = new double[classes];
+        burst = new int[classes];
+        tokens = new double[classes];
+        refillTime = new long[classes];
+        for (RateLimitClass limitClass : RateLimitClass.values()) {
+            int i = limitClass.ordinal();
+            tokensPerNano[i] = config.getRateLimits()[i] / 1e9;
+            burst[i] = config.getRateBursts()[i];
+            tokens[i] = burst[i];
+            refillTime[i] = nowNanos;
+        }
+        muteThreshold = config.getMuteThreshold();
+        muteNanos = config.getMuteMillis() * 1_000_000;
+    }
+
+    public Result acquire(RateLimitClass limitClass, long nowNanos) {
+        if (muted) {
+            if (nowNanos - mutedUntil < 0) {
+                return Result.DROPPED;
+            }
+            muted = false;
+        }
+
+        int i = limitClass.ordinal();
+        double available = Math.min(burst[i], tokens[i] + (nowNanos - refillTime[i]) * tokensPerNano[i]);
+        refillTime[i] = nowNanos;
+        if (available >= 1) {
+            tokens[i] = available - 1;
+            rejectedInRow = 0;
+            return Result.ALLOWED;
+        }
+        tokens[i] = available;
+
+        rejectedInRow++;
+        if (rejectedInRow >= muteThreshold) {
+            rejectedInRow = 0;
+            muted = true;
+            mutedUntil = nowNanos + muteNanos;
+            return Result.MUTED;
+        }
+        return rejectedInRow == 1 ? Result.THROTTLED : Result.DROPPED;
+    }
+}
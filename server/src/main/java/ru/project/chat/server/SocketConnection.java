@@ -0,0 +1,126 @@
+package ru.project.chat.server;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Log4j2
+public class SocketConnection implements ClientConnection {
+    // сколько сообщений забирать из очереди за раз
+    private static final int DRAIN_BATCH = 64;
+
+    // Кадры до FRAME_BUFFER_SIZE байт читаются в буфер сессии, длинные - в массив по длине кадра, который после
+    // разбора не хранится: простаивающая сессия держит только маленький буфер
+    private static final int FRAME_BUFFER_SIZE = 512;
+
+    private final Socket socket;
+    private final Server server;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final OutboundQueue<Frame> outbound;
+    private final long flushDelayNanos;
+    private final byte[] frameBuffer = new byte[FRAME_BUFFER_SIZE];
+
+    public SocketConnection(Socket socket, Server server) throws IOException {
+        this.socket = socket;
+        this.server = server;
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        ServerConfig config = server.getConfig();
+        out = new BufferedOutputStream(socket.getOutputStream(), config.getOutputBufferBytes());
+        flushDelayNanos = config.getFlushDelayNanos();
+        outbound = new OutboundQueue<>(config.getOutboundQueueCapacity(), config.getOverflowPolicy(),
+                server.getDroppedMessages());
+        server.getSessionThreadFactory().newThread(this::writeMessages).start();
+    }
+
+    // Длина тела очередного кадра из его заголовка
+    public int readFrameLength() throws IOException {
+        return in.readUnsignedShort();
+    }
+
+    // Тело кадра с начала массива; массив действителен до чтения следующего кадра, разбирает кадр ClientHandler
+    public byte[] readFrameBody(int length) throws IOException {
+        byte[] buffer = length <= frameBuffer.length ? frameBuffer : new byte[length];
+        in.readFully(buffer, 0, length);
+        return buffer;
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (!outbound.offer(frame)) {
+            server.getSlowConsumerDisconnects().increment();
+            closeSocket();
+            throw new IOException("Клиент не успевает принимать сообщения, очередь переполнена");
+        }
+    }
+
+    // Сообщения, накопившиеся в очереди, пишутся в буфер и уходят в сокет одной записью.
+    // Писатель собирает сообщения в буфер не дольше flushDelay от первого из них и затем отправляет буфер
+    // (заполнившийся буфер отправляется сразу); при flushDelay = 0 отправляется то, что было в очереди
+    private void writeMessages() {
+        List<Frame> batch = new ArrayList<>(DRAIN_BATCH);
+        try {
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                frame.writeTo(out);
+                long flushDeadline = System.nanoTime() + flushDelayNanos;
+                do {
+                    if (outbound.drainTo(batch, DRAIN_BATCH) == 0) {
+                        long remaining = flushDeadline - System.nanoTime();
+                        Frame next = remaining > 0 ? outbound.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    for (Frame queued : batch) {
+                        queued.writeTo(out);
+                    }
+                    batch.clear();
+                } while (System.nanoTime() - flushDeadline < 0);
+                out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeSocket();
+        }
+    }
+
+    // Писатель отправит то, что уже стоит в очереди (например, сообщение о бане), и закроет сокет сам;
+    // если он не успеет, сокет закроет общий ConnectionSweeper
+    @Override
+    public void close() {
+        outbound.close();
+        server.getConnectionSweeper().closeLater(this::closeSocket);
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outbound.getDropped();
+    }
+}
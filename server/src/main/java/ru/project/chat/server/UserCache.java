@@ -0,0 +1,221 @@
+package ru.project.chat.server;
+
+import ru.project.chat.server.model.User;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Кэш пользователей с индексами по логину и по никнейму.
+// Уникальность логина и никнейма обеспечивается putIfAbsent, поэтому регистрация и смена ника не требуют общей блокировки.
+// Ограниченный кэш (maxSize > 0) помнит порядок обращений и при переполнении вытесняет тех, к кому дольше всего
+// не обращались. Поиск не берет общую блокировку: обращение только записывается в один из буферов (буфер
+// выбирается по потоку), а порядок обновляется пачкой из всех буферов - когда буфер наполовину заполнен
+// и блокировка свободна, и перед вытеснением. Если буфер полон, обращение не записывается, поэтому порядок
+// приблизительный: под нагрузкой вытесняется один из давно неактивных, а не точно самый давний
+public class UserCache {
+    // буферов - степень двойки не меньше удвоенного числа процессоров, в каждом ACCESS_BUFFER_SIZE записей
+    private static final int ACCESS_BUFFERS =
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1);
+    private static final int ACCESS_BUFFER_SIZE = 32;
+
+    private final Map<String, User> usersByLogin = new ConcurrentHashMap<>();
+    private final Map<String, User> usersByNickname = new ConcurrentHashMap<>();
+    // 0 - без ограничения
+    private final int maxSize;
+    // логины в порядке последнего обращения, только для ограниченного кэша; меняется под recentLock
+    private final LinkedHashMap<String, User> recent;
+    private final ReentrantLock recentLock = new ReentrantLock();
+    private final AccessBuffer[] accessBuffers;
+
+    public UserCache() {
+        this(0);
+    }
+
+    public UserCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.recent = maxSize > 0 ? new LinkedHashMap<>(16, 0.75f, true) : null;
+        this.accessBuffers = maxSize > 0 ? new AccessBuffer[ACCESS_BUFFERS] : null;
+        if (accessBuffers != null) {
+            for (int i = 0; i < accessBuffers.length; i++) {
+                accessBuffers[i] = new AccessBuffer();
+            }
+        }
+    }
+
+    public User getByLogin(String login) {
+        return touch(usersByLogin.get(login));
+    }
+
+    public User getByNickname(String nickname) {
+        return touch(usersByNickname.get(nickname));
+    }
+
+    // Добавляет пользователя, только если и логин, и никнейм еще свободны
+    public boolean add(User user) {
+        if (usersByNickname.putIfAbsent(user.getNickname(), user) != null) {
+            return false;
+        }
+        if (usersByLogin.putIfAbsent(user.getLogin(), user) != null) {
+            usersByNickname.remove(user.getNickname(), user);
+            return false;
+        }
+        if (recent != null) {
+            evictOverflow(user);
+        }
+        return true;
+    }
+
+    public void remove(User user) {
+        if (recent != null) {
+            recentLock.lock();
+            try {
+                recent.remove(user.getLogin(), user);
+            } finally {
+                recentLock.unlock();
+            }
+        }
+        usersByLogin.remove(user.getLogin(), user);
+        usersByNickname.remove(user.getNickname(), user);
+    }
+
+    // Смена ника, false - пользователя с таким ником нет или новый ник уже занят
+    public boolean rename(String oldNickname, String newNickname) {
+        User user = usersByNickname.get(oldNickname);
+        if (user == null) {
+            return false;
+        }
+        synchronized (user) {
+            if (!oldNickname.equals(user.getNickname())) {
+                return false;
+            }
+            if (usersByNickname.putIfAbsent(newNickname, user) != null) {
+                return false;
+            }
+            user.setNickname(newNickname);
+            usersByNickname.remove(oldNickname, user);
+            return true;
+        }
+    }
+
+    public int size() {
+        return usersByLogin.size();
+    }
+
+    public List<User> values() {
+        return new ArrayList<>(usersByLogin.values());
+    }
+
+    // Новое состояние пользователя из базы. Объект в кэше обновляется на месте, чтобы его не потерять между
+    // удалением и добавлением; отсутствующий пользователь добавляется, только если addMissing.
+    // false - новый ник (или логин) в кэше еще занят другим пользователем, состояние не применено
+    public boolean refresh(User fresh, boolean addMissing) {
+        User user = usersByLogin.get(fresh.getLogin());
+        if (user == null) {
+            return !addMissing || add(fresh);
+        }
+        synchronized (user) {
+            String nickname = user.getNickname();
+            if (!nickname.equals(fresh.getNickname()) && !rename(nickname, fresh.getNickname())) {
+                return false;
+            }
+            user.setPassword(fresh.getPassword());
+            user.setStartBanDateTime(fresh.getStartBanDateTime());
+            user.setEndBanDateTime(fresh.getEndBanDateTime());
+            user.setRoles(fresh.getRoles());
+            return true;
+        }
+    }
+
+    private User touch(User user) {
+        if (user != null && recent != null) {
+            AccessBuffer buffer = accessBuffers[(int) Thread.currentThread().threadId() & (accessBuffers.length - 1)];
+            // не ждем блокировку: если ее держит другой поток, он или следующий обращающийся разберет буфер
+            if (buffer.offer(user) && recentLock.tryLock()) {
+                try {
+                    drainAccessBuffers();
+                } finally {
+                    recentLock.unlock();
+                }
+            }
+        }
+        return user;
+    }
+
+    // Переносит записанные обращения в порядок recent, вызывается под recentLock
+    private void drainAccessBuffers() {
+        for (AccessBuffer buffer : accessBuffers) {
+            buffer.drainTo(recent);
+        }
+    }
+
+    private void evictOverflow(User added) {
+        User evicted = null;
+        recentLock.lock();
+        try {
+            drainAccessBuffers();
+            recent.put(added.getLogin(), added);
+            if (recent.size() > maxSize) {
+                Iterator<User> eldest = recent.values().iterator();
+                evicted = eldest.next();
+                eldest.remove();
+            }
+        } finally {
+            recentLock.unlock();
+        }
+        if (evicted != null) {
+            // под блокировкой пользователя, чтобы не разойтись с одновременной сменой ника
+            synchronized (evicted) {
+                usersByLogin.remove(evicted.getLogin(), evicted);
+                usersByNickname.remove(evicted.getNickname(), evicted);
+            }
+        }
+    }
+
+    // Кольцевой буфер обращений: пишут потоки поиска без блокировок, разбирает один поток под recentLock.
+    // Запись, которой не хватило места или которая проиграла гонку за ячейку, отбрасывается
+    private static final class AccessBuffer {
+        private final AtomicReferenceArray<User> slots = new AtomicReferenceArray<>(ACCESS_BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        // true - в буфере набралось достаточно записей, чтобы разобрать его
+        boolean offer(User user) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            long size = tail - head;
+            if (size >= ACCESS_BUFFER_SIZE) {
+                return true;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & (ACCESS_BUFFER_SIZE - 1)), user);
+                size++;
+            }
+            return size >= ACCESS_BUFFER_SIZE / 2;
+        }
+
+        void drainTo(LinkedHashMap<String, User> recent) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & (ACCESS_BUFFER_SIZE - 1));
+                User user = slots.get(index);
+                if (user == null) {
+                    // ячейка занята, но запись в нее еще не видна - разберем в следующий раз
+                    break;
+                }
+                slots.lazySet(index, null);
+                // get в LinkedHashMap с порядком обращений переносит пользователя в конец; вытесненного
+                // или удаленного пользователя в recent уже нет, и запись о нем пропадает
+                recent.get(user.getLogin());
+            }
+            readCounter = head;
+        }
+    }
+}
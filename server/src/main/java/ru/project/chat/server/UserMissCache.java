@@ -0,0 +1,44 @@
+package ru.project.chat.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Логины или ники, которых недавно не нашли в базе: повторный промах кэша в режиме lazy (подбор логинов,
+// сообщения несуществующему нику) не идет в базу, пока не истечет ttl. Регистрация и смена ника убирают
+// занятый ключ сразу. Если записей больше maxSize, кэш очищается целиком - это лишь откат к чтению из базы
+public class UserMissCache {
+    private final long ttlNanos;
+    private final int maxSize;
+    private final Map<String, Long> expiresAtNanos = new ConcurrentHashMap<>();
+
+    public UserMissCache(long ttlMillis, int maxSize) {
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.maxSize = maxSize;
+    }
+
+    public boolean isMissing(String key) {
+        Long expiresAt = expiresAtNanos.get(key);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt - System.nanoTime() < 0) {
+            expiresAtNanos.remove(key, expiresAt);
+            return false;
+        }
+        return true;
+    }
+
+    public void put(String key) {
+        if (ttlNanos <= 0) {
+            return;
+        }
+        if (expiresAtNanos.size() >= maxSize) {
+            expiresAtNanos.clear();
+        }
+        expiresAtNanos.put(key, System.nanoTime() + ttlNanos);
+    }
+
+    public void remove(String key) {
+        expiresAtNanos.remove(key);
+    }
+}
@@ -0,0 +1,197 @@
+package ru.project.chat.server;
+
+import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.model.Role;
+import ru.project.chat.server.model.RoleName;
+import ru.project.chat.server.model.User;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+// Снимок кэша пользователей в локальном файле, чтобы после перезапуска сразу обслуживать вход без чтения базы.
+// Формат: заголовок (MAGIC, VERSION, watermark - updated_at из базы, до которого снимок актуален), роли,
+// пользователи, в конце CRC32C всего предыдущего. Строки - длина (short) и UTF-8, время - миллисекунды
+// (NULL_TIME - нет значения, MAX_TIME - LocalDateTime.MAX).
+// Файл пишется во временный и переименовывается, поэтому на диске всегда целый снимок; при запуске он отображается
+// в память и разбирается за один проход. В снимке пароли пользователей, файл доступен только владельцу
+@Log4j2
+public class UserSnapshot {
+    private static final int MAGIC = 0x43485553;
+    private static final int VERSION = 1;
+    private static final long NULL_TIME = Long.MIN_VALUE;
+    private static final long MAX_TIME = Long.MAX_VALUE;
+
+    private final Path file;
+
+    public UserSnapshot(Path file) {
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public void write(Collection<User> users, Collection<Role> roles, long watermark) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // не POSIX файловая система, права остаются по умолчанию
+            }
+            CRC32C crc = new CRC32C();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Files.newOutputStream(temp, StandardOpenOption.TRUNCATE_EXISTING), crc),
+                    64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(watermark);
+                out.writeInt(roles.size());
+                for (Role role : roles) {
+                    out.writeInt(role.getId());
+                    writeString(out, role.getName().name());
+                }
+                out.writeInt(users.size());
+                for (User user : users) {
+                    writeString(out, user.getLogin());
+                    writeString(out, user.getPassword());
+                    writeString(out, user.getNickname());
+                    out.writeLong(toMillis(user.getStartBanDateTime()));
+                    out.writeLong(toMillis(user.getEndBanDateTime()));
+                    Set<Role> userRoles = user.getRoles();
+                    out.writeByte(userRoles.size());
+                    for (Role role : userRoles) {
+                        out.writeInt(role.getId());
+                    }
+                }
+                out.flush();
+                // контрольная сумма дописывается в конец и сама в нее не входит
+                long checksum = crc.getValue();
+                out.writeLong(checksum);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // null - снимка нет или он поврежден, тогда кэш загружается из базы
+    public Loaded read() {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 8 || size > Integer.MAX_VALUE) {
+                log.warn("Снимок пользователей " + file + " поврежден: размер " + size);
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.slice(0, (int) size - 8));
+            if (crc.getValue() != buffer.getLong((int) size - 8)) {
+                log.warn("Снимок пользователей " + file + " поврежден: не сходится контрольная сумма");
+                return null;
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                log.warn("Снимок пользователей " + file + " другого формата, пропускаем");
+                return null;
+            }
+            long watermark = buffer.getLong();
+            Map<Integer, Role> roles = new HashMap<>();
+            int roleCount = buffer.getInt();
+            for (int i = 0; i < roleCount; i++) {
+                Role role = new Role(buffer.getInt(), RoleName.valueOf(readString(buffer)));
+                roles.put(role.getId(), role);
+            }
+            int userCount = buffer.getInt();
+            List<User> users = new ArrayList<>(userCount);
+            for (int i = 0; i < userCount; i++) {
+                User user = new User();
+                user.setLogin(readString(buffer));
+                user.setPassword(readString(buffer));
+                user.setNickname(readString(buffer));
+                user.setStartBanDateTime(fromMillis(buffer.getLong()));
+                user.setEndBanDateTime(fromMillis(buffer.getLong()));
+                int userRoleCount = buffer.get();
+                Set<Role> userRoles = new HashSet<>();
+                for (int j = 0; j < userRoleCount; j++) {
+                    Role role = roles.get(buffer.getInt());
+                    if (role != null) {
+                        userRoles.add(role);
+                    }
+                }
+                user.setRoles(userRoles);
+                users.add(user);
+            }
+            return new Loaded(users, roles, watermark);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            log.warn("Не удалось прочитать снимок пользователей " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long toMillis(LocalDateTime dateTime) {
+        if (dateTime == null) {
+            return NULL_TIME;
+        }
+        if (dateTime.equals(LocalDateTime.MAX)) {
+            return MAX_TIME;
+        }
+        return dateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(long millis) {
+        if (millis == NULL_TIME) {
+            return null;
+        }
+        if (millis == MAX_TIME) {
+            return LocalDateTime.MAX;
+        }
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000,
+                ZoneOffset.UTC);
+    }
+
+    public record Loaded(List<User> users, Map<Integer, Role> roles, long watermark) {
+    }
+}
@@ -0,0 +1,72 @@
+package ru.project.chat.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Недавно проверенные логины и пароли: повторный вход (переподключение) не пересчитывает PBKDF2.
+// Хранится не пароль, а HMAC-SHA256 от него с ключом, который живет только в памяти процесса.
+// Запись действует ttl и только пока у пользователя тот же хэш пароля. Если записей больше maxSize,
+// кэш очищается целиком - это лишь откат к обычной проверке
+public class VerifiedCredentials {
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final long ttlNanos;
+    private final int maxSize;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> mac;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public VerifiedCredentials(long ttlMillis, int maxSize) {
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.maxSize = maxSize;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.mac = ThreadLocal.withInitial(this::createMac);
+    }
+
+    public boolean isVerified(String login, String password, String storedHash) {
+        Entry entry = entries.get(login);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expiresAtNanos - System.nanoTime() < 0 || !entry.storedHash.equals(storedHash)) {
+            entries.remove(login, entry);
+            return false;
+        }
+        return MessageDigest.isEqual(entry.digest, digest(password));
+    }
+
+    public void put(String login, String password, String storedHash) {
+        if (ttlNanos <= 0) {
+            return;
+        }
+        if (entries.size() >= maxSize) {
+            entries.clear();
+        }
+        entries.put(login, new Entry(digest(password), storedHash, System.nanoTime() + ttlNanos));
+    }
+
+    private byte[] digest(String password) {
+        return mac.get().doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mac createMac() {
+        try {
+            Mac instance = Mac.getInstance(ALGORITHM);
+            instance.init(key);
+            return instance;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " недоступен", e);
+        }
+    }
+
+    private record Entry(byte[] digest, String storedHash, long expiresAtNanos) {
+    }
+}
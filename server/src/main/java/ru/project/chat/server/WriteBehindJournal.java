@@ -0,0 +1,533 @@
+package ru.project.chat.server;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Отложенная запись изменений в базу. Кэш пользователей меняется сразу, а изменение ставится в очередь
+// и фоновым потоком пишется в базу пачками (JDBC batch) в одной транзакции.
+// Каждое изменение до постановки в очередь дописывается в локальный файл журнала, а append возвращается, когда
+// журнал сброшен на диск. Сброс общий (group commit): один fsync покрывает все изменения, дописанные к этому
+// времени, и выполняется вне блокировки журнала, поэтому добавление изменения не ждет чужих fsync.
+// После коммита номер последнего записанного изменения сохраняется в checkpoint, и поток записи переписывает
+// журнал, оставляя только незаписанные в базу изменения, поэтому при постоянной нагрузке он не растет;
+// добавление изменений ждет только подмены файла.
+// Если сервер упал, при следующем запуске незаписанные изменения из журнала будут отправлены в базу
+// в том же порядке; изменения, которые успели попасть в базу до сбоя, могут быть отправлены повторно,
+// поэтому запросы журнала должны быть идемпотентными
+@Log4j2
+public class WriteBehindJournal implements Runnable {
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte DATE_TIME = 3;
+
+    // журнал переписывается, когда в нем накопилось столько уже записанных в базу изменений
+    private static final int COMPACT_RECORDS = 10_000;
+
+    private final Path journalFile;
+    private final Path checkpointFile;
+    private final ConnectionSource connectionSource;
+    private final int batchSize;
+    private final long retryDelayMillis;
+    private final int maxAttempts;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private final Object processedMonitor = new Object();
+    // изменения, еще не записанные в базу, по порядку; под блокировкой this
+    private final ArrayDeque<PendingWrite> unprocessed = new ArrayDeque<>();
+    // под блокировкой this: файл журнала, в который дописываются изменения
+    private FileChannel journalChannel;
+    private DataOutputStream journal;
+    // записей в файле журнала, включая уже записанные в базу
+    private int journalRecords;
+    private long lastSeq;
+    private boolean closed;
+    // под блокировкой syncMonitor: изменения до syncedSeq на диске, syncing - кто-то сейчас делает fsync
+    private final Object syncMonitor = new Object();
+    private long syncedSeq;
+    private boolean syncing;
+    private volatile long processedSeq;
+    private volatile boolean running = true;
+
+    public WriteBehindJournal(Path journalFile, int batchSize, long retryDelayMillis, int maxAttempts) {
+        this(journalFile, ConnectorDB::getConnection, batchSize, retryDelayMillis, maxAttempts);
+    }
+
+    public WriteBehindJournal(Path journalFile, ConnectionSource connectionSource, int batchSize,
+                              long retryDelayMillis, int maxAttempts) {
+        this.journalFile = journalFile;
+        this.checkpointFile = Path.of(journalFile + ".checkpoint");
+        this.connectionSource = connectionSource;
+        this.batchSize = batchSize;
+        this.retryDelayMillis = retryDelayMillis;
+        this.maxAttempts = maxAttempts;
+        try {
+            replay();
+            openJournal();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        syncedSeq = lastSeq;
+        thread = new Thread(this, "write-behind-journal");
+        thread.start();
+    }
+
+    // Соединения с базой для записи изменений
+    @FunctionalInterface
+    public interface ConnectionSource {
+        Connection getConnection() throws SQLException;
+    }
+
+    // Изменение будет записано в базу позже, порядок изменений сохраняется
+    public void append(String sql, Object... params) {
+        append(null, sql, params);
+    }
+
+    // skipped вызывается в потоке записи, если изменение не затронуло ни одной строки или так и не записалось
+    // в базу; из него нельзя ждать журнал (flush). При повторе журнала после перезапуска не вызывается
+    public void append(Runnable skipped, String sql, Object... params) {
+        long seq;
+        synchronized (this) {
+            seq = ++lastSeq;
+            PendingWrite write = new PendingWrite(seq, sql, params, skipped);
+            try {
+                writeRecord(journal, write);
+                journal.flush();
+                journalRecords++;
+            } catch (IOException e) {
+                log.error("Не удалось записать изменение в журнал " + journalFile, e);
+            }
+            unprocessed.addLast(write);
+            queue.add(write);
+        }
+        sync(seq);
+    }
+
+    // Ждет, пока изменение seq окажется на диске. fsync делает один поток за всех: пока он идет, следующие
+    // изменения дописываются в файл, и следующий fsync покрывает их все
+    private void sync(long seq) {
+        while (true) {
+            synchronized (syncMonitor) {
+                while (syncing && syncedSeq < seq) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (syncedSeq >= seq) {
+                    return;
+                }
+                syncing = true;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                if (closed) {
+                    finishSync(syncedSeq);
+                    return;
+                }
+                target = lastSeq;
+                channel = journalChannel;
+            }
+            try {
+                channel.force(false);
+                finishSync(target);
+            } catch (ClosedChannelException e) {
+                // поток записи подменил файл журнала: новый файл сброшен им самим, дописанное после - сбросим заново
+                finishSync(syncedSeq);
+            } catch (IOException e) {
+                finishSync(syncedSeq);
+                log.error("Не удалось сбросить на диск журнал " + journalFile, e);
+                return;
+            }
+        }
+    }
+
+    private void finishSync(long seq) {
+        synchronized (syncMonitor) {
+            syncing = false;
+            syncedSeq = Math.max(syncedSeq, seq);
+            syncMonitor.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<PendingWrite> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                writeWithRetry(batch);
+                markProcessed(batch.get(batch.size() - 1).seq);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Пока пачка не записана, следующие изменения ждут, чтобы порядок в базе совпадал с порядком в кэше
+    private void writeWithRetry(List<PendingWrite> batch) throws InterruptedException {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                notifySkipped(writeBatch(batch));
+                return;
+            } catch (SQLException e) {
+                log.warn("Не удалось записать в базу " + batch.size() + " изменений (попытка " + attempt + "): "
+                        + e.getMessage());
+                Thread.sleep(retryDelayMillis * attempt);
+            }
+        }
+
+        // пачка так и не записалась: пишем по одному, чтобы потерять только ошибочные изменения
+        for (PendingWrite write : batch) {
+            try {
+                notifySkipped(writeBatch(List.of(write)));
+            } catch (SQLException e) {
+                log.error("Изменение не записано в базу и пропущено: " + write, e);
+                notifySkipped(List.of(write));
+            }
+        }
+    }
+
+    // Изменения, не затронувшие ни одной строки
+    private List<PendingWrite> writeBatch(List<PendingWrite> batch) throws SQLException {
+        long startNanos = System.nanoTime();
+        List<PendingWrite> skipped = new ArrayList<>();
+        try (Connection connection = connectionSource.getConnection()) {
+            connection.setAutoCommit(false);
+            int start = 0;
+            while (start < batch.size()) {
+                // подряд идущие изменения с одинаковым запросом отправляются одним JDBC batch
+                String sql = batch.get(start).sql;
+                int end = start;
+                try (PreparedStatement prepareStatement = connection.prepareStatement(sql)) {
+                    while (end < batch.size() && batch.get(end).sql.equals(sql)) {
+                        bind(prepareStatement, batch.get(end).params);
+                        prepareStatement.addBatch();
+                        end++;
+                    }
+                    int[] affectedRows = prepareStatement.executeBatch();
+                    for (int i = 0; i < affectedRows.length; i++) {
+                        if (affectedRows[i] == 0) {
+                            log.warn("Изменение не затронуло ни одной строки: " + batch.get(start + i));
+                            skipped.add(batch.get(start + i));
+                        }
+                    }
+                }
+                start = end;
+            }
+            connection.commit();
+        } finally {
+            ConnectorDB.getCallLatency().recordSince(startNanos);
+        }
+        log.info("В базу записано изменений: " + batch.size());
+        return skipped;
+    }
+
+    private static void notifySkipped(List<PendingWrite> skipped) {
+        for (PendingWrite write : skipped) {
+            if (write.skipped != null) {
+                try {
+                    write.skipped.run();
+                } catch (RuntimeException e) {
+                    log.error("Ошибка при обработке незаписанного изменения " + write, e);
+                }
+            }
+        }
+    }
+
+    private static void bind(PreparedStatement prepareStatement, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] instanceof LocalDateTime dateTime) {
+                prepareStatement.setTimestamp(i + 1, Timestamp.valueOf(dateTime));
+            } else {
+                prepareStatement.setObject(i + 1, params[i]);
+            }
+        }
+    }
+
+    // Изменения до seq в базе: ждущие flush отпускаются сразу, затем сохраняется checkpoint и при необходимости
+    // переписывается журнал
+    private void markProcessed(long seq) {
+        boolean compact;
+        synchronized (this) {
+            while (!unprocessed.isEmpty() && unprocessed.peekFirst().seq <= seq) {
+                unprocessed.pollFirst();
+            }
+            // все изменения в базе или записанных накопилось много: в журнале оставляем только незаписанные
+            compact = unprocessed.isEmpty() || journalRecords - unprocessed.size() >= COMPACT_RECORDS;
+        }
+        synchronized (processedMonitor) {
+            processedSeq = seq;
+            processedMonitor.notifyAll();
+        }
+        try {
+            writeCheckpoint(seq);
+            if (compact) {
+                rewriteJournal();
+            }
+        } catch (IOException e) {
+            log.error("Не удалось обновить журнал " + journalFile, e);
+        }
+    }
+
+    // Ждет, пока в базу попадут все изменения, поставленные в очередь до вызова
+    public void flush(long timeoutMillis) {
+        long target = getLastSeq();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (processedMonitor) {
+            while (processedSeq < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    log.warn("Не дождались записи в базу " + (target - processedSeq) + " изменений, они остались в журнале");
+                    return;
+                }
+                try {
+                    processedMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void close(long timeoutMillis) {
+        flush(timeoutMillis);
+        running = false;
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeJournal();
+    }
+
+    // Останавливает поток записи, не дописывая очередь в базу, как при сбое сервера; для проверки повтора журнала
+    void halt() throws InterruptedException {
+        running = false;
+        thread.interrupt();
+        thread.join();
+        closeJournal();
+    }
+
+    private synchronized void closeJournal() {
+        closed = true;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        }
+    }
+
+    // Номер последнего поставленного в очередь изменения: если он не изменился, новых изменений не было
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    // Есть изменения, еще не записанные в базу: и в очереди, и в пачке, которую писатель уже забрал
+    public boolean hasUnprocessed() {
+        return processedSeq < getLastSeq();
+    }
+
+    // Досылает в базу изменения, которые остались в журнале после прошлого запуска
+    private void replay() throws IOException {
+        long checkpoint = Files.exists(checkpointFile) ? Long.parseLong(Files.readString(checkpointFile).trim()) : 0;
+        lastSeq = checkpoint;
+        processedSeq = checkpoint;
+        if (!Files.exists(journalFile)) {
+            return;
+        }
+
+        List<PendingWrite> pending = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            while (true) {
+                PendingWrite write = readRecord(in);
+                lastSeq = Math.max(lastSeq, write.seq);
+                if (write.seq > checkpoint) {
+                    pending.add(write);
+                }
+            }
+        } catch (EOFException e) {
+            // конец журнала, последняя запись может быть оборвана
+        }
+
+        if (!pending.isEmpty()) {
+            log.info("Досылаем в базу изменения из журнала: " + pending.size());
+            try {
+                for (int start = 0; start < pending.size(); start += batchSize) {
+                    writeWithRetry(pending.subList(start, Math.min(start + batchSize, pending.size())));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeCheckpoint(lastSeq);
+        processedSeq = lastSeq;
+        Files.deleteIfExists(journalFile);
+    }
+
+    private void openJournal() throws IOException {
+        journalChannel = FileChannel.open(journalFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journal = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(journalChannel)));
+    }
+
+    // Новый журнал из незаписанных изменений пишется рядом и сбрасывается на диск без блокировки журнала.
+    // Под блокировкой в него дописываются изменения, добавленные за это время, и он заменяет старый одним
+    // переименованием: после сбоя на диске либо старый журнал, либо новый целиком
+    private void rewriteJournal() throws IOException {
+        List<PendingWrite> pending;
+        long rewrittenSeq;
+        synchronized (this) {
+            pending = new ArrayList<>(unprocessed);
+            rewrittenSeq = lastSeq;
+        }
+        Path rewritten = Path.of(journalFile + ".tmp");
+        FileChannel channel = FileChannel.open(rewritten, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        boolean replaced = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            for (PendingWrite write : pending) {
+                writeRecord(out, write);
+            }
+            out.flush();
+            channel.force(false);
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                // изменения после rewrittenSeq еще не записаны в базу: их записывает только этот поток
+                for (PendingWrite write : unprocessed) {
+                    if (write.seq > rewrittenSeq) {
+                        writeRecord(out, write);
+                    }
+                }
+                out.flush();
+                Files.move(rewritten, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                replaced = true;
+                // fsync, который сейчас идет по старому файлу, завершится ошибкой и повторится по новому
+                closeQuietly(journal);
+                journalChannel = channel;
+                journal = out;
+                journalRecords = unprocessed.size();
+            }
+        } finally {
+            if (!replaced) {
+                // если заменить не удалось, продолжаем дописывать старый журнал
+                channel.close();
+                Files.deleteIfExists(rewritten);
+            }
+        }
+        finishRewrite(rewrittenSeq);
+    }
+
+    // Изменения до seq лежат в новом журнале, уже сброшенном на диск
+    private void finishRewrite(long seq) {
+        synchronized (syncMonitor) {
+            syncedSeq = Math.max(syncedSeq, seq);
+            syncMonitor.notifyAll();
+        }
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        }
+    }
+
+    private void writeCheckpoint(long seq) throws IOException {
+        Path written = Path.of(checkpointFile + ".tmp");
+        try (FileChannel channel = FileChannel.open(written, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(String.valueOf(seq).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(false);
+        }
+        Files.move(written, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeRecord(DataOutputStream out, PendingWrite write) throws IOException {
+        out.writeLong(write.seq);
+        out.writeUTF(write.sql);
+        out.writeInt(write.params.length);
+        for (Object param : write.params) {
+            if (param == null) {
+                out.writeByte(NULL);
+            } else if (param instanceof String string) {
+                out.writeByte(STRING);
+                out.writeUTF(string);
+            } else if (param instanceof Integer integer) {
+                out.writeByte(INT);
+                out.writeInt(integer);
+            } else if (param instanceof LocalDateTime dateTime) {
+                out.writeByte(DATE_TIME);
+                out.writeUTF(dateTime.toString());
+            } else {
+                throw new IllegalArgumentException("Неподдерживаемый тип параметра: " + param.getClass());
+            }
+        }
+    }
+
+    private static PendingWrite readRecord(DataInputStream in) throws IOException {
+        long seq = in.readLong();
+        String sql = in.readUTF();
+        Object[] params = new Object[in.readInt()];
+        for (int i = 0; i < params.length; i++) {
+            byte type = in.readByte();
+            params[i] = switch (type) {
+                case NULL -> null;
+                case STRING -> in.readUTF();
+                case INT -> in.readInt();
+                case DATE_TIME -> LocalDateTime.parse(in.readUTF());
+                default -> throw new IOException("Поврежден журнал: неизвестный тип параметра " + type);
+            };
+        }
+        return new PendingWrite(seq, sql, params, null);
+    }
+
+    // skipped не сохраняется в журнале, после перезапуска его нет
+    private record PendingWrite(long seq, String sql, Object[] params, Runnable skipped) {
+        @Override
+        public String toString() {
+            return "#" + seq + " " + sql;
+        }
+    }
+}
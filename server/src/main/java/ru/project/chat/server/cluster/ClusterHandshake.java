@@ -0,0 +1,56 @@
+package ru.project.chat.server.cluster;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+// Взаимная проверка узлов по общему секрету (server.cluster.secret). Принимающий узел присылает случайную
+// строку (CHALLENGE), подключившийся отвечает HELLO со своим именем, своей случайной строкой и HMAC от
+// строки принимающего, а принимающий подтверждает секрет в WELCOME HMAC-ом от строки подключившегося.
+// В HMAC входят направление и имя узла, поэтому ответ одного узла нельзя выдать за ответ другого
+final class ClusterHandshake {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int NONCE_BYTES = 16;
+
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    ClusterHandshake(String secret) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    String newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    // Ответ подключившегося узла node на строку принимающего
+    String helloProof(String nonce, String node) {
+        return proof("hello", nonce, node);
+    }
+
+    // Ответ принимающего узла node на строку подключившегося
+    String welcomeProof(String nonce, String node) {
+        return proof("welcome", nonce, node);
+    }
+
+    static boolean matches(String proof, String expected) {
+        return MessageDigest.isEqual(proof.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String proof(String direction, String nonce, String node) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            byte[] digest = mac.doFinal((direction + '\n' + nonce + '\n' + node).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
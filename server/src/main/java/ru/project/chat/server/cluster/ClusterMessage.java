@@ -0,0 +1,100 @@
+package ru.project.chat.server.cluster;
+
+import ru.project.chat.server.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+// Сообщение между узлами кластера: байт типа, число полей (int), поля (writeUTF),
+// затем длина кадра (int, 0 - кадра нет) и сам кадр в том виде, в каком его получат клиенты.
+// Сообщение кодируется один раз и одни и те же байты уходят всем соседям
+final class ClusterMessage {
+    // первое сообщение подключившегося узла: имя узла, случайная строка, ответ на CHALLENGE (ClusterHandshake)
+    static final byte HELLO = 1;
+    // полный список пользователей узла, заменяет прежний
+    static final byte PRESENCE = 2;
+    static final byte JOIN = 3;
+    static final byte LEAVE = 4;
+    // служебное сообщение всем (вход, выход, смена ника)
+    static final byte BROADCAST = 5;
+    // сообщение в комнату: room
+    static final byte ROOM = 6;
+    // служебное сообщение комнате, в историю не попадает: room
+    static final byte ROOM_NOTICE = 7;
+    // личное сообщение: sender, recipient
+    static final byte PRIVATE = 8;
+    static final byte KICK = 9;
+    // бан: nickname, minutes
+    static final byte BAN = 10;
+    // первое сообщение принимающего узла: случайная строка
+    static final byte CHALLENGE = 11;
+    // принимающий узел признал соседа: ответ на его случайную строку
+    static final byte WELCOME = 12;
+
+    private static final String[] NO_FIELDS = new String[0];
+
+    byte type;
+    String[] fields = NO_FIELDS;
+    Frame frame;
+
+    private ClusterMessage() {
+    }
+
+    static byte[] encode(byte type, Frame frame, String... fields) {
+        return encode(type, frame, Arrays.asList(fields));
+    }
+
+    static byte[] encode(byte type, Frame frame, Collection<String> fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (frame != null ? frame.size() : 0));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeInt(fields.size());
+            for (String field : fields) {
+                out.writeUTF(field);
+            }
+            if (frame != null) {
+                out.writeInt(frame.size());
+                frame.writeTo(out);
+            } else {
+                out.writeInt(0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static ClusterMessage read(DataInputStream in) throws IOException {
+        ClusterMessage message = new ClusterMessage();
+        message.type = in.readByte();
+        int fieldCount = in.readInt();
+        if (fieldCount < 0) {
+            throw new IOException("Поврежденное сообщение узла: полей " + fieldCount);
+        }
+        if (fieldCount > 0) {
+            // число полей не проверено, пока сосед не прошел проверку, поэтому массив растет по мере чтения
+            List<String> fields = new ArrayList<>(Math.min(fieldCount, 1024));
+            for (int i = 0; i < fieldCount; i++) {
+                fields.add(in.readUTF());
+            }
+            message.fields = fields.toArray(NO_FIELDS);
+        }
+        int frameLength = in.readInt();
+        if (frameLength < 0 || frameLength > 2 + 0xFFFF) {
+            throw new IOException("Поврежденное сообщение узла: длина кадра " + frameLength);
+        }
+        if (frameLength > 0) {
+            byte[] encoded = new byte[frameLength];
+            in.readFully(encoded);
+            message.frame = Frame.ofEncoded(encoded);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,299 @@
+package ru.project.chat.server.cluster;
+
+import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.Frame;
+import ru.project.chat.server.Server;
+import ru.project.chat.server.ServerConfig;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Узел кластера из нескольких серверов. Соседи задаются статически (server.cluster.peers), каждый узел
+// держит исходящее соединение к каждому соседу (PeerLink) и принимает входящие от них на server.cluster.port.
+// Узел пересылает соседям только то, что произошло у него самого, поэтому сообщения не ходят по кругу.
+// Сообщение в чат уходит каждому соседу одним сообщением, а по своим пользователям его раздает сам сосед.
+// Личные сообщения, /kick и бан отправляются узлу, на котором сейчас пользователь; кто на каком узле,
+// узлы сообщают друг другу при подключении (PRESENCE) и затем при каждом входе и выходе.
+// Порт кластера слушается только на адресе server.cluster.host, а соединение принимается только от соседа
+// из настроек, с его адреса и после проверки общего секрета (ClusterHandshake)
+@Log4j2
+public class ClusterNode {
+    private final Server server;
+    private final String nodeName;
+    private final String host;
+    private final int port;
+    private final ClusterHandshake handshake;
+    private final Map<String, PeerLink> peers = new ConcurrentHashMap<>();
+    // пользователи других узлов: ник -> имя узла
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    // текущее входящее соединение от каждого соседа
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+    private final LongAdder droppedMessages = new LongAdder();
+    private ServerSocket serverSocket;
+
+    public ClusterNode(Server server, ServerConfig config) {
+        this.server = server;
+        this.nodeName = config.getClusterNode();
+        this.host = config.getClusterHost();
+        this.port = config.getClusterPort();
+        if (config.getClusterSecret() == null || config.getClusterSecret().isBlank()) {
+            throw new IllegalArgumentException("Для кластера нужен общий секрет server.cluster.secret");
+        }
+        this.handshake = new ClusterHandshake(config.getClusterSecret());
+        for (String peer : config.getClusterPeers()) {
+            // имя@хост:порт
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Сосед кластера задается как имя@хост:порт: " + peer);
+            }
+            String name = peer.substring(0, at);
+            PeerLink link = new PeerLink(name, peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1)),
+                    nodeName, handshake, this::encodePresence, config.getClusterQueueCapacity(),
+                    config.getClusterReconnectMillis(), droppedMessages);
+            peers.put(name, link);
+        }
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(host));
+        Thread acceptor = new Thread(this::acceptPeers, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : peers.values()) {
+            link.start();
+        }
+        log.info("Узел кластера " + nodeName + " слушает " + host + ":" + port + ", соседи: " + peers.keySet());
+    }
+
+    public void close() {
+        for (PeerLink link : peers.values()) {
+            link.close();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            for (Socket socket : inbound.values()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        }
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    // Пользователи, которые сейчас на других узлах
+    public List<String> getRemoteUsers() {
+        return new ArrayList<>(remoteUsers.keySet());
+    }
+
+    public boolean isRemoteUser(String nickname) {
+        return remoteUsers.containsKey(nickname);
+    }
+
+    public int getConnectedPeers() {
+        int connected = 0;
+        for (PeerLink link : peers.values()) {
+            if (link.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    public long getQueueDepth() {
+        long depth = 0;
+        for (PeerLink link : peers.values()) {
+            depth += link.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    public void userJoined(String nickname) {
+        sendToAll(ClusterMessage.encode(ClusterMessage.JOIN, null, nickname));
+    }
+
+    public void userLeft(String nickname) {
+        sendToAll(ClusterMessage.encode(ClusterMessage.LEAVE, null, nickname));
+    }
+
+    public void broadcast(Frame frame) {
+        sendToAll(ClusterMessage.encode(ClusterMessage.BROADCAST, frame));
+    }
+
+    public void publish(String roomName, Frame frame) {
+        sendToAll(ClusterMessage.encode(ClusterMessage.ROOM, frame, roomName));
+    }
+
+    public void notifyRoom(String roomName, Frame frame) {
+        sendToAll(ClusterMessage.encode(ClusterMessage.ROOM_NOTICE, frame, roomName));
+    }
+
+    // false - получателя нет ни на одном из соседей
+    public boolean sendPrivate(String sender, String recipient, Frame frame) {
+        return sendToOwner(recipient, ClusterMessage.encode(ClusterMessage.PRIVATE, frame, sender, recipient));
+    }
+
+    public boolean kick(String nickname) {
+        return sendToOwner(nickname, ClusterMessage.encode(ClusterMessage.KICK, null, nickname));
+    }
+
+    // Бан нужен всем узлам: у каждого свой кэш пользователей, а забаненный может войти через любой
+    public void ban(String nickname, long minutes) {
+        sendToAll(ClusterMessage.encode(ClusterMessage.BAN, null, nickname, String.valueOf(minutes)));
+    }
+
+    private boolean sendToOwner(String nickname, byte[] message) {
+        String owner = remoteUsers.get(nickname);
+        PeerLink link = owner != null ? peers.get(owner) : null;
+        if (link == null) {
+            return false;
+        }
+        link.send(message);
+        return true;
+    }
+
+    private void sendToAll(byte[] message) {
+        for (PeerLink link : peers.values()) {
+            link.send(message);
+        }
+    }
+
+    private byte[] encodePresence() {
+        return ClusterMessage.encode(ClusterMessage.PRESENCE, null, server.getLocalUsers());
+    }
+
+    private void acceptPeers() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> readPeer(socket), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            log.info("Прием соединений от узлов кластера остановлен");
+        }
+    }
+
+    private void readPeer(Socket socket) {
+        String peer = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            peer = authenticate(socket, in);
+            if (peer == null) {
+                return;
+            }
+            Thread.currentThread().setName("cluster-reader-" + peer);
+            Socket previous = inbound.put(peer, socket);
+            if (previous != null) {
+                previous.close();
+            }
+            log.info("Узел " + peer + " подключился");
+            while (true) {
+                handle(peer, ClusterMessage.read(in));
+            }
+        } catch (EOFException | SocketException e) {
+            log.info("Узел " + (peer != null ? peer : socket.getRemoteSocketAddress()) + " отключился");
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ошибка в соединении с узлом " + peer, e);
+        } finally {
+            // пользователи узла пропадают из списка, только если это не старое соединение, замененное новым
+            if (peer != null && inbound.remove(peer, socket)) {
+                String node = peer;
+                remoteUsers.values().removeIf(node::equals);
+            }
+        }
+    }
+
+    // Проверка подключившегося соседа, null - соединение нужно закрыть
+    private String authenticate(Socket socket, DataInputStream in) throws IOException {
+        socket.setSoTimeout(PeerLink.HANDSHAKE_TIMEOUT_MILLIS);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        String nonce = handshake.newNonce();
+        out.write(ClusterMessage.encode(ClusterMessage.CHALLENGE, null, nonce));
+        out.flush();
+        ClusterMessage hello = ClusterMessage.read(in);
+        if (hello.type != ClusterMessage.HELLO || hello.fields.length != 3) {
+            log.warn("Узел " + socket.getRemoteSocketAddress() + " не представился, соединение закрыто");
+            return null;
+        }
+        String peer = hello.fields[0];
+        PeerLink link = peers.get(peer);
+        if (link == null || !link.isAddressOf(socket.getInetAddress())) {
+            log.warn("Узла " + peer + " с адресом " + socket.getRemoteSocketAddress()
+                    + " нет в server.cluster.peers, соединение закрыто");
+            return null;
+        }
+        if (!ClusterHandshake.matches(hello.fields[2], handshake.helloProof(nonce, peer))) {
+            log.warn("Узел " + peer + " (" + socket.getRemoteSocketAddress()
+                    + ") не прошел проверку общего секрета, соединение закрыто");
+            return null;
+        }
+        out.write(ClusterMessage.encode(ClusterMessage.WELCOME, null, handshake.welcomeProof(hello.fields[1], nodeName)));
+        out.flush();
+        socket.setSoTimeout(0);
+        return peer;
+    }
+
+    private void handle(String peer, ClusterMessage message) {
+        String[] fields = message.fields;
+        switch (message.type) {
+            case ClusterMessage.PRESENCE -> {
+                remoteUsers.values().removeIf(peer::equals);
+                for (String nickname : fields) {
+                    remoteJoined(peer, nickname);
+                }
+            }
+            case ClusterMessage.JOIN -> remoteJoined(peer, fields[0]);
+            case ClusterMessage.LEAVE -> remoteUsers.remove(fields[0], peer);
+            case ClusterMessage.BROADCAST -> server.deliverBroadcast(message.frame);
+            case ClusterMessage.ROOM -> server.deliverToRoom(fields[0], message.frame, true);
+            case ClusterMessage.ROOM_NOTICE -> server.deliverToRoom(fields[0], message.frame, false);
+            case ClusterMessage.PRIVATE -> server.deliverPrivate(fields[0], fields[1], message.frame);
+            case ClusterMessage.KICK -> server.kickLocal(fields[0]);
+            case ClusterMessage.BAN -> applyBan(fields[0], Long.parseLong(fields[1]));
+            default -> log.warn("Неизвестное сообщение от узла " + peer + ": " + message.type
+                    + " " + Arrays.toString(fields));
+        }
+    }
+
+    // Вход пользователя, который уже есть на другом узле, отклоняется (Server.isActiveOnOtherNode), но если он
+    // вошел на двух узлах одновременно, оба узла узнают об этом из JOIN соседа. Сессия остается на узле с меньшим
+    // именем: оба узла решают одинаково, и второй отключает своего пользователя
+    private void remoteJoined(String peer, String nickname) {
+        remoteUsers.put(nickname, peer);
+        if (nodeName.compareTo(peer) > 0 && server.kickLocal(nickname) != null) {
+            log.info("Пользователь " + nickname + " уже вошел на узле " + peer + ", сессия на этом узле закрыта");
+        }
+    }
+
+    // Бан пишется в базу (а в режиме lazy пользователь может читаться из нее), поэтому идет в пул команд Server,
+    // чтобы не задерживать остальные сообщения соседа; если пул переполнен, бан применяется здесь же
+    private void applyBan(String nickname, long minutesBan) {
+        if (!server.submitCommand(() -> server.applyBan(nickname, minutesBan))) {
+            server.applyBan(nickname, minutesBan);
+        }
+    }
+}
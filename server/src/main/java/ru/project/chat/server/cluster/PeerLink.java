@@ -0,0 +1,178 @@
+package ru.project.chat.server.cluster;
+
+import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.OutboundQueue;
+import ru.project.chat.server.OverflowPolicy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Исходящее соединение с соседним узлом. Сообщения для соседа копятся в очереди, а один поток
+// пишет их в сокет пачками: все, что накопилось, уходит одной записью.
+// При обрыве поток переподключается; после подключения он проходит проверку общего секрета (ClusterHandshake),
+// отправляет список своих пользователей, а сообщения, накопившиеся без соединения, выбрасывает - сосед получит
+// актуальное состояние
+@Log4j2
+class PeerLink implements Runnable {
+    private static final int DRAIN_BATCH = 256;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final String nodeName;
+    private final ClusterHandshake handshake;
+    private final Supplier<byte[]> presence;
+    private final long reconnectMillis;
+    private final OutboundQueue<byte[]> queue;
+    private final Thread thread;
+    private volatile Socket socket;
+    private volatile boolean running = true;
+
+    PeerLink(String name, String host, int port, String nodeName, ClusterHandshake handshake,
+             Supplier<byte[]> presence, int queueCapacity, long reconnectMillis, LongAdder dropped) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.nodeName = nodeName;
+        this.handshake = handshake;
+        this.presence = presence;
+        this.reconnectMillis = reconnectMillis;
+        this.queue = new OutboundQueue<>(queueCapacity, OverflowPolicy.DROP_OLDEST, dropped);
+        this.thread = new Thread(this, "cluster-link-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void send(byte[] message) {
+        queue.offer(message);
+    }
+
+    // Входящее соединение от этого соседа принимается только с адреса из его настроек
+    boolean isAddressOf(InetAddress address) {
+        try {
+            for (InetAddress configured : InetAddress.getAllByName(host)) {
+                if (configured.equals(address)) {
+                    return true;
+                }
+            }
+        } catch (UnknownHostException e) {
+            log.warn("Не удалось разрешить адрес узла " + name + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    boolean isConnected() {
+        Socket current = socket;
+        return current != null && current.isConnected() && !current.isClosed();
+    }
+
+    @Override
+    public void run() {
+        boolean reported = false;
+        while (running) {
+            try (Socket connection = new Socket()) {
+                connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                socket = connection;
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(connection.getOutputStream(), BUFFER_BYTES));
+                authenticate(connection, out);
+                queue.clear();
+                out.write(presence.get());
+                out.flush();
+                log.info("Подключились к узлу " + name + " (" + host + ":" + port + ")");
+                reported = false;
+                writeMessages(out);
+            } catch (IOException e) {
+                if (!reported) {
+                    log.warn("Нет соединения с узлом " + name + " (" + host + ":" + port + "): " + e.getMessage());
+                    reported = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                socket = null;
+            }
+            if (running) {
+                try {
+                    Thread.sleep(reconnectMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void authenticate(Socket connection, DataOutputStream out) throws IOException {
+        connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(connection.getInputStream());
+        ClusterMessage challenge = ClusterMessage.read(in);
+        if (challenge.type != ClusterMessage.CHALLENGE || challenge.fields.length != 1) {
+            throw new IOException("узел не прислал запрос проверки");
+        }
+        String nonce = handshake.newNonce();
+        out.write(ClusterMessage.encode(ClusterMessage.HELLO, null,
+                nodeName, nonce, handshake.helloProof(challenge.fields[0], nodeName)));
+        out.flush();
+        ClusterMessage welcome = ClusterMessage.read(in);
+        if (welcome.type != ClusterMessage.WELCOME || welcome.fields.length != 1
+                || !ClusterHandshake.matches(welcome.fields[0], handshake.welcomeProof(nonce, name))) {
+            throw new IOException("узел не подтвердил общий секрет кластера");
+        }
+        connection.setSoTimeout(0);
+    }
+
+    private void writeMessages(DataOutputStream out) throws IOException, InterruptedException {
+        List<byte[]> batch = new ArrayList<>(DRAIN_BATCH);
+        byte[] message;
+        while ((message = queue.take()) != null) {
+            out.write(message);
+            queue.drainTo(batch, DRAIN_BATCH);
+            for (byte[] queued : batch) {
+                out.write(queued);
+            }
+            batch.clear();
+            out.flush();
+        }
+    }
+
+    void close() {
+        running = false;
+        queue.close();
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                log.warn(e.getMessage());
+            }
+        }
+        thread.interrupt();
+    }
+}
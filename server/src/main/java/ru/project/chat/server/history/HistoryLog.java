@@ -0,0 +1,253 @@
+package ru.project.chat.server.history;
+
+import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.Frame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// История сообщений чата: журнал из сегментов, отображенных в память (см. HistorySegment).
+// Сессия только ставит уже закодированный кадр в очередь, в файл его пишет отдельный поток.
+// Номер записи выдается сразу при постановке в очередь, поэтому при входе можно отправить историю ровно
+// до номера, замеченного после подписки клиента, дождавшись, пока writer допишет ее до этого номера.
+// При входе пользователю отправляются последние сообщения, которые он может видеть:
+// кадры копируются из сегментов как есть в один общий буфер и уходят клиенту одной записью.
+// Старые сегменты удаляются, когда история превышает maxBytes или старше retention
+@Log4j2
+public class HistoryLog implements Runnable {
+    // сколько записей просматривать при входе в поисках сообщений, видимых пользователю
+    private static final int MAX_REPLAY_SCAN = 10_000;
+    private static final int MAX_PENDING = 100_000;
+    private static final long RETENTION_CHECK_MILLIS = 60_000L;
+    // сколько при входе ждать, пока в файл попадут сообщения, поставленные в очередь до входа
+    private static final long REPLAY_WAIT_MILLIS = 1_000L;
+    private static final byte[][] EVERYONE = new byte[0][];
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long retentionMillis;
+    private final ConcurrentNavigableMap<Long, HistorySegment> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>(MAX_PENDING);
+    private final Thread thread;
+    private HistorySegment active;
+    private long nextSeq;
+    // номер следующей записи в очереди, под блокировкой this
+    private long appendSeq;
+    // записи с меньшими номерами уже в сегментах (или потеряны из-за ошибки записи)
+    private volatile long writtenSeq;
+    private final Object writtenMonitor = new Object();
+    private volatile boolean running = true;
+
+    public HistoryLog(Path directory, int segmentBytes, long maxBytes, long retentionMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(directory);
+        recover();
+        thread = new Thread(this, "history-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "history-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long firstSeq = Long.parseLong(name.substring("history-".length(), name.length() - ".log".length()));
+                segments.put(firstSeq, HistorySegment.open(file, firstSeq));
+            }
+        }
+        if (segments.isEmpty()) {
+            active = HistorySegment.create(directory, 0, segmentBytes);
+            segments.put(0L, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        nextSeq = active.getFirstSeq() + active.getCount();
+        appendSeq = nextSeq;
+        writtenSeq = nextSeq;
+        log.info("История сообщений: сегментов " + segments.size() + ", следующий номер " + nextSeq);
+    }
+
+    // audience == null - сообщение для всех, иначе только для перечисленных логинов.
+    // Возвращает номер записи, -1 - очередь переполнена и сообщение не сохранено
+    public synchronized long append(Frame frame, List<String> audience) {
+        if (!queue.offer(new PendingRecord(appendSeq, System.currentTimeMillis(), frame, audience))) {
+            log.warn("Очередь записи истории переполнена, сообщение не сохранено");
+            return -1;
+        }
+        return appendSeq++;
+    }
+
+    // Номер, который получит следующая запись: все сообщения, сохраненные до вызова, имеют меньшие номера
+    public synchronized long getAppendSeq() {
+        return appendSeq;
+    }
+
+    @Override
+    public void run() {
+        long nextRetentionCheck = 0;
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRecord record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    try {
+                        write(record);
+                    } finally {
+                        // запись, потерянная из-за ошибки, оставляет пропуск в номерах, а не сдвигает следующие
+                        nextSeq = record.seq + 1;
+                        markWritten(nextSeq);
+                    }
+                }
+                if (System.currentTimeMillis() >= nextRetentionCheck) {
+                    enforceRetention();
+                    nextRetentionCheck = System.currentTimeMillis() + RETENTION_CHECK_MILLIS;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                log.error("Ошибка записи истории сообщений", e);
+            }
+        }
+        active.force();
+    }
+
+    private void write(PendingRecord record) throws IOException {
+        byte[][] audience = EVERYONE;
+        if (record.audience != null) {
+            audience = new byte[record.audience.size()][];
+            for (int i = 0; i < audience.length; i++) {
+                audience[i] = record.audience.get(i).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        if (!active.append(record.timestamp, audience, record.frame)) {
+            active.force();
+            // номер записи должен совпадать с номером в очереди, поэтому запись больше сегмента не пропускается,
+            // а получает сегмент по своему размеру
+            int size = Math.max(segmentBytes, HistorySegment.recordSize(audience, record.frame));
+            active = HistorySegment.create(directory, nextSeq, size);
+            segments.put(nextSeq, active);
+            active.append(record.timestamp, audience, record.frame);
+            enforceRetention();
+        }
+    }
+
+    private void markWritten(long seq) {
+        synchronized (writtenMonitor) {
+            writtenSeq = seq;
+            writtenMonitor.notifyAll();
+        }
+    }
+
+    // Ждет, пока в сегменты попадут записи с номерами меньше seq; возвращает, до какого номера они там есть
+    private long awaitWritten(long seq) {
+        long deadline = System.currentTimeMillis() + REPLAY_WAIT_MILLIS;
+        synchronized (writtenMonitor) {
+            long remaining;
+            while (writtenSeq < seq && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    writtenMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return Math.min(writtenSeq, seq);
+        }
+    }
+
+    private void enforceRetention() throws IOException {
+        long totalBytes = 0;
+        for (HistorySegment segment : segments.values()) {
+            totalBytes += segment.getSize();
+        }
+        long expiredBefore = System.currentTimeMillis() - retentionMillis;
+        Map.Entry<Long, HistorySegment> oldest;
+        while ((oldest = segments.firstEntry()) != null && oldest.getValue() != active) {
+            HistorySegment segment = oldest.getValue();
+            if (totalBytes <= maxBytes && segment.getLastTimestamp() >= expiredBefore) {
+                break;
+            }
+            segments.remove(oldest.getKey());
+            totalBytes -= segment.getSize();
+            segment.delete();
+            log.info("Удален сегмент истории " + segment);
+        }
+    }
+
+    // Последние limit сообщений с номерами меньше upToSeq, видимых пользователю, одним буфером из подряд идущих
+    // кадров (frame == null - нечего отправлять) и номер, до которого история просмотрена: если writer не успел
+    // дописать очередь за REPLAY_WAIT_MILLIS, он меньше upToSeq
+    public Replay replay(String login, int limit, long upToSeq) {
+        long bound = awaitWritten(upToSeq);
+        if (bound < upToSeq) {
+            log.warn("История для " + login + " отправлена без " + (upToSeq - bound) + " последних сообщений: "
+                    + "они еще не записаны");
+        }
+        if (limit <= 0) {
+            return new Replay(null, bound);
+        }
+        byte[] loginBytes = login.getBytes(StandardCharsets.UTF_8);
+        HistorySegment[] pickedSegments = new HistorySegment[limit];
+        int[] pickedIndexes = new int[limit];
+        int picked = 0;
+        int scanned = 0;
+        int totalSize = 0;
+
+        search:
+        for (HistorySegment segment : segments.headMap(bound).descendingMap().values()) {
+            int count = (int) Math.min(segment.getCount(), bound - segment.getFirstSeq());
+            for (int index = count - 1; index >= 0; index--) {
+                if (picked == limit || scanned++ == MAX_REPLAY_SCAN) {
+                    break search;
+                }
+                if (segment.isVisibleTo(index, loginBytes)) {
+                    pickedSegments[picked] = segment;
+                    pickedIndexes[picked] = index;
+                    totalSize += segment.frameSize(index);
+                    picked++;
+                }
+            }
+        }
+        if (picked == 0) {
+            return new Replay(null, bound);
+        }
+
+        byte[] bytes = new byte[totalSize];
+        int offset = 0;
+        for (int i = picked - 1; i >= 0; i--) {
+            pickedSegments[i].copyFrame(pickedIndexes[i], bytes, offset);
+            offset += pickedSegments[i].frameSize(pickedIndexes[i]);
+        }
+        return new Replay(Frame.ofEncoded(bytes), bound);
+    }
+
+    // Дописывает то, что осталось в очереди, и сбрасывает сегмент на диск
+    public void close() {
+        running = false;
+        try {
+            thread.join(5000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public record Replay(Frame frame, long upToSeq) {
+    }
+
+    private record PendingRecord(long seq, long timestamp, Frame frame, List<String> audience) {
+    }
+}
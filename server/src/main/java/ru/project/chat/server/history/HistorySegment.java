@@ -0,0 +1,207 @@
+package ru.project.chat.server.history;
+
+import ru.project.chat.server.Frame;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Сегмент истории: файл фиксированного размера, отображенный в память.
+// Запись: время (8 байт, не 0), число адресатов (1 байт, 0 - сообщение для всех; старший бит - адресаты
+// заданы логинами), адресаты (2 байта длины и логин в UTF-8), затем кадр сообщения как у Frame (2 байта длины и тело).
+// Записи прежних версий без старшего бита адресованы никам: ник мог перейти к другому пользователю,
+// поэтому такие личные сообщения больше никому не показываются.
+// Нулевое время - конец записанных данных. Смещения записей держатся в памяти:
+// номер записи = firstSeq + индекс в сегменте. Пишет один поток, читать можно из любого
+class HistorySegment {
+    private static final int HEADER_SIZE = 8 + 1;
+    private static final int LOGIN_AUDIENCE = 0x80;
+    private static final int AUDIENCE_COUNT_MASK = 0x7F;
+
+    private final Path file;
+    private final long firstSeq;
+    private final MappedByteBuffer buffer;
+    private volatile int[] offsets = new int[1024];
+    private volatile int count;
+    private volatile long lastTimestamp;
+    private int position;
+
+    private HistorySegment(Path file, long firstSeq, MappedByteBuffer buffer) {
+        this.file = file;
+        this.firstSeq = firstSeq;
+        this.buffer = buffer;
+    }
+
+    static HistorySegment create(Path directory, long firstSeq, int size) throws IOException {
+        Path file = directory.resolve(fileName(firstSeq));
+        return new HistorySegment(file, firstSeq, map(file, size));
+    }
+
+    // Открывает сегмент, оставшийся с прошлого запуска, и восстанавливает смещения записей
+    static HistorySegment open(Path file, long firstSeq) throws IOException {
+        HistorySegment segment = new HistorySegment(file, firstSeq, map(file, Files.size(file)));
+        segment.recover();
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")) {
+            randomAccessFile.setLength(size);
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    static String fileName(long firstSeq) {
+        return String.format("history-%020d.log", firstSeq);
+    }
+
+    private void recover() {
+        int capacity = buffer.capacity();
+        while (position + HEADER_SIZE <= capacity) {
+            long timestamp = buffer.getLong(position);
+            if (timestamp == 0) {
+                break;
+            }
+            int end = frameOffset(position);
+            if (end + 2 > capacity) {
+                break;
+            }
+            end += 2 + (buffer.getShort(end) & 0xFFFF);
+            if (end > capacity) {
+                break;
+            }
+            addOffset(position);
+            lastTimestamp = timestamp;
+            position = end;
+        }
+    }
+
+    static int recordSize(byte[][] audience, Frame frame) {
+        int size = HEADER_SIZE + frame.size();
+        for (byte[] login : audience) {
+            size += 2 + login.length;
+        }
+        return size;
+    }
+
+    // false - запись не помещается, нужен следующий сегмент
+    boolean append(long timestamp, byte[][] audience, Frame frame) {
+        int size = recordSize(audience, frame);
+        if (position + size > buffer.capacity()) {
+            return false;
+        }
+
+        int start = position;
+        int offset = start + 8;
+        buffer.put(offset++, (byte) (audience.length == 0 ? 0 : audience.length | LOGIN_AUDIENCE));
+        for (byte[] login : audience) {
+            buffer.putShort(offset, (short) login.length);
+            buffer.put(offset + 2, login);
+            offset += 2 + login.length;
+        }
+        ByteBuffer encoded = frame.buffer();
+        buffer.put(offset, encoded, encoded.position(), encoded.remaining());
+        // время пишется последним: запись без времени после сбоя считается незаписанной
+        buffer.putLong(start, timestamp);
+
+        position = start + size;
+        lastTimestamp = timestamp;
+        addOffset(start);
+        return true;
+    }
+
+    private void addOffset(int offset) {
+        int[] current = offsets;
+        if (count == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            offsets = current;
+        }
+        current[count] = offset;
+        count++;
+    }
+
+    private int frameOffset(int recordOffset) {
+        int offset = recordOffset + 8;
+        int audience = buffer.get(offset++) & AUDIENCE_COUNT_MASK;
+        for (int i = 0; i < audience; i++) {
+            offset += 2 + (buffer.getShort(offset) & 0xFFFF);
+        }
+        return offset;
+    }
+
+    // Сообщение для всех или login среди адресатов (логин сравнивается побайтно, без создания строк)
+    boolean isVisibleTo(int index, byte[] login) {
+        int offset = offsets[index] + 8;
+        int header = buffer.get(offset++) & 0xFF;
+        int audience = header & AUDIENCE_COUNT_MASK;
+        if (audience == 0) {
+            return true;
+        }
+        if ((header & LOGIN_AUDIENCE) == 0) {
+            return false;
+        }
+        for (int i = 0; i < audience; i++) {
+            int length = buffer.getShort(offset) & 0xFFFF;
+            if (length == login.length && matches(offset + 2, login)) {
+                return true;
+            }
+            offset += 2 + length;
+        }
+        return false;
+    }
+
+    private boolean matches(int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Размер кадра записи вместе с двумя байтами длины
+    int frameSize(int index) {
+        return 2 + (buffer.getShort(frameOffset(offsets[index])) & 0xFFFF);
+    }
+
+    void copyFrame(int index, byte[] target, int targetOffset) {
+        int offset = frameOffset(offsets[index]);
+        buffer.get(offset, target, targetOffset, 2 + (buffer.getShort(offset) & 0xFFFF));
+    }
+
+    long getFirstSeq() {
+        return firstSeq;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    long getSize() {
+        return buffer.capacity();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    // Отображение остается действительным, пока на буфер есть ссылки, поэтому чтение, начатое
+    // до удаления, безопасно дочитает запись
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public String toString() {
+        return file.getFileName().toString();
+    }
+}
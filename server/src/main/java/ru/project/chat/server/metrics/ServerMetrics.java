@@ -0,0 +1,112 @@
+package ru.project.chat.server.metrics;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.Command;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Метрики одного сервера (узла): у каждого Server свой экземпляр, поэтому узлы в одном процессе не смешивают
+// счетчики. Счетчики - LongAdder, задержки - LatencyHistogram, поэтому запись из потоков сессий не требует
+// блокировок. Раз в секунду считается частота сообщений.
+// Все метрики доступны по JMX в домене ru.project.chat (с именем узла) и админу командой /stats
+@Log4j2
+public class ServerMetrics {
+    public static final String DOMAIN = "ru.project.chat";
+
+    @Getter
+    private final LongAdder messagesIn = new LongAdder();
+    @Getter
+    private final LongAdder messagesOut = new LongAdder();
+    @Getter
+    private final LongAdder authFailures = new LongAdder();
+    @Getter
+    private final LongAdder idleDisconnects = new LongAdder();
+    // команды, отклоненные ограничением частоты, и сессии, замолчавшие из-за флуда
+    @Getter
+    private final LongAdder throttledCommands = new LongAdder();
+    @Getter
+    private final LongAdder mutedSessions = new LongAdder();
+    // входы и регистрации, отклоненные из-за заполненной очереди пула входа
+    @Getter
+    private final LongAdder authRejected = new LongAdder();
+    // время рассылки одного сообщения всем клиентам (постановка кадра в очереди)
+    @Getter
+    private final LatencyHistogram broadcastFanOut = new LatencyHistogram();
+    // вход или регистрация целиком: ожидание в очереди пула и проверка пароля
+    @Getter
+    private final LatencyHistogram authLatency = new LatencyHistogram();
+    private final LatencyHistogram[] commandLatency = new LatencyHistogram[Command.values().length];
+
+    @Getter
+    private volatile double messagesInPerSecond;
+    @Getter
+    private volatile double messagesOutPerSecond;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private long lastSampleNanos = System.nanoTime();
+    private final ScheduledExecutorService sampler;
+
+    public ServerMetrics() {
+        for (int i = 0; i < commandLatency.length; i++) {
+            commandLatency[i] = new LatencyHistogram();
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sampleRates, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Задержки по JMX как ru.project.chat:type=Latency,node=<node>,name=<метрика>
+    public void register(String node) {
+        String prefix = "type=Latency,node=" + node + ",name=";
+        register(prefix + "broadcastFanOut", broadcastFanOut);
+        register(prefix + "auth", authLatency);
+        for (Command command : Command.values()) {
+            register(prefix + "command." + command.name().toLowerCase(), commandLatency[command.ordinal()]);
+        }
+    }
+
+    public void close() {
+        sampler.shutdownNow();
+    }
+
+    public LatencyHistogram getCommandLatency(Command command) {
+        return commandLatency[command.ordinal()];
+    }
+
+    private void sampleRates() {
+        long now = System.nanoTime();
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        messagesInPerSecond = (in - lastMessagesIn) / seconds;
+        messagesOutPerSecond = (out - lastMessagesOut) / seconds;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        lastSampleNanos = now;
+    }
+
+    // Регистрирует MBean как ru.project.chat:<properties>; прежний с тем же именем заменяется
+    public static void register(String properties, Object mbean) {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(mbean, name);
+        } catch (JMException e) {
+            log.warn("Не удалось зарегистрировать MBean " + properties + ": " + e.getMessage());
+        }
+    }
+}
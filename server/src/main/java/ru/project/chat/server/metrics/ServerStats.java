@@ -0,0 +1,134 @@
+package ru.project.chat.server.metrics;
+
+import ru.project.chat.server.Command;
+import ru.project.chat.server.ConnectorDB;
+import ru.project.chat.server.Server;
+import ru.project.chat.server.cluster.ClusterNode;
+
+// Сводка по серверу: JMX (ru.project.chat:type=Server) и текст для команды /stats
+public class ServerStats implements ServerStatsMBean {
+    private final Server server;
+    private final ServerMetrics metrics;
+
+    public ServerStats(Server server, ServerMetrics metrics) {
+        this.server = server;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return server.getSessionCount();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return metrics.getMessagesIn().sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return metrics.getMessagesOut().sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return metrics.getMessagesInPerSecond();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return metrics.getMessagesOutPerSecond();
+    }
+
+    @Override
+    public long getAuthFailures() {
+        return metrics.getAuthFailures().sum();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return metrics.getIdleDisconnects().sum();
+    }
+
+    @Override
+    public long getThrottledCommands() {
+        return metrics.getThrottledCommands().sum();
+    }
+
+    @Override
+    public long getMutedSessions() {
+        return metrics.getMutedSessions().sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return server.getDroppedMessages().sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return server.getSlowConsumerDisconnects().sum();
+    }
+
+    @Override
+    public long getOutboundQueueDepth() {
+        return server.getOutboundQueueDepth();
+    }
+
+    @Override
+    public int getAuthQueueDepth() {
+        return server.getAuthQueueDepth();
+    }
+
+    @Override
+    public long getAuthRejected() {
+        return metrics.getAuthRejected().sum();
+    }
+
+    // Соседи кластера, с которыми сейчас есть соединение
+    @Override
+    public int getClusterPeers() {
+        ClusterNode cluster = server.getCluster();
+        return cluster != null ? cluster.getConnectedPeers() : 0;
+    }
+
+    @Override
+    public long getClusterQueueDepth() {
+        ClusterNode cluster = server.getCluster();
+        return cluster != null ? cluster.getQueueDepth() : 0;
+    }
+
+    @Override
+    public long getClusterDroppedMessages() {
+        ClusterNode cluster = server.getCluster();
+        return cluster != null ? cluster.getDroppedMessages() : 0;
+    }
+
+    public String format() {
+        StringBuilder stats = new StringBuilder();
+        stats.append(String.format("Сессий: %d, сообщений в секунду: входящих %.1f, исходящих %.1f%n",
+                getActiveSessions(), getMessagesInPerSecond(), getMessagesOutPerSecond()));
+        stats.append(String.format("Всего сообщений: входящих %d, исходящих %d, в очередях %d, выброшено %d%n",
+                getMessagesIn(), getMessagesOut(), getOutboundQueueDepth(), getDroppedMessages()));
+        stats.append(String.format("Ошибок входа: %d, отключено по простою: %d, медленных клиентов: %d%n",
+                getAuthFailures(), getIdleDisconnects(), getSlowConsumerDisconnects()));
+        stats.append(String.format("Отклонено по лимиту частоты: %d, замолчавших сессий: %d%n",
+                getThrottledCommands(), getMutedSessions()));
+        stats.append(String.format("Вход: в очереди %d, отклонено при перегрузке %d, время ",
+                getAuthQueueDepth(), getAuthRejected())).append(metrics.getAuthLatency().format()).append('\n');
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            stats.append(String.format("Узел %s, соседей на связи: %d, в очередях к соседям %d, выброшено %d%n",
+                    cluster.getNodeName(), getClusterPeers(), getClusterQueueDepth(), getClusterDroppedMessages()));
+        }
+        stats.append("Рассылка: ").append(metrics.getBroadcastFanOut().format()).append('\n');
+        stats.append("База: ").append(ConnectorDB.getCallLatency().format());
+        for (Command command : Command.values()) {
+            LatencyHistogram latency = metrics.getCommandLatency(command);
+            if (latency.getCount() > 0) {
+                stats.append('\n').append(command.name().toLowerCase()).append(": ").append(latency.format());
+            }
+        }
+        return stats.toString();
+    }
+}
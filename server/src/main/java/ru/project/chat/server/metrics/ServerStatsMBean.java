@@ -0,0 +1,37 @@
+package ru.project.chat.server.metrics;
+
+public interface ServerStatsMBean {
+    int getActiveSessions();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getAuthFailures();
+
+    long getIdleDisconnects();
+
+    long getThrottledCommands();
+
+    long getMutedSessions();
+
+    long getDroppedMessages();
+
+    long getSlowConsumerDisconnects();
+
+    long getOutboundQueueDepth();
+
+    int getAuthQueueDepth();
+
+    long getAuthRejected();
+
+    int getClusterPeers();
+
+    long getClusterQueueDepth();
+
+    long getClusterDroppedMessages();
+}
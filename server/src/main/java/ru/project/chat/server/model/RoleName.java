@@ -2,5 +2,10 @@ package ru.project.chat.server.model;
 
 public enum RoleName {
     ADMIN,
-    USER
-}
\ No newline at end of file
+    USER;
+
+    // Бит роли в маске ролей пользователя
+    public int mask() {
+        return 1 << ordinal();
+    }
+}
@@ -3,6 +3,7 @@ package ru.project.chat.server.model;
 import lombok.Setter;
 
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Objects;
@@ -11,11 +12,11 @@ import java.util.Set;
 @Setter
 public class User {
     private String login;
-    private String password;
-    private String nickname;
-    private LocalDateTime startBanDateTime;
-    private LocalDateTime endBanDateTime;
-    private Set<Role> roles;
+    private volatile String password;
+    private volatile String nickname;
+    private volatile LocalDateTime startBanDateTime;
+    private volatile LocalDateTime endBanDateTime;
+    private volatile Set<Role> roles;
 
     public User() {
     }
@@ -54,6 +55,27 @@ public class User {
         return roles;
     }
 
+    // Роли пользователя в виде битовой маски RoleName.mask()
+    public int getRoleMask() {
+        int mask = 0;
+        for (Role role : getRoles()) {
+            mask |= role.getName().mask();
+        }
+        return mask;
+    }
+
+    // Окончание бана в миллисекундах epoch: 0 - бана нет, Long.MAX_VALUE - перманентный бан
+    public long getBanDeadlineMillis() {
+        LocalDateTime end = endBanDateTime;
+        if (end == null) {
+            return 0;
+        }
+        if (end.equals(LocalDateTime.MAX)) {
+            return Long.MAX_VALUE;
+        }
+        return end.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,221 @@
+package ru.project.chat.server.nio;
+
+import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.ClientHandler;
+import ru.project.chat.server.ClientConnection;
+import ru.project.chat.server.Frame;
+import ru.project.chat.server.OutboundQueue;
+import ru.project.chat.server.Server;
+import ru.project.chat.server.ServerConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Соединение в неблокирующем режиме. Формат кадров тот же, что у DataOutputStream.writeUTF:
+// два байта длины и тело кадра, поэтому клиент Network работает без изменений.
+// Читается в общий буфер event loop, и целые кадры ClientHandler разбирает прямо в нем, без копирования.
+// У соединения своего буфера нет, пока кадр не пришел частично: тогда начало кадра копируется в буфер
+// соединения размером с этот кадр, остаток дочитывается прямо туда, и после разбора буфер отпускается
+@Log4j2
+public class NioConnection implements ClientConnection {
+    static final int MAX_FRAME_SIZE = 2 + 0xFFFF;
+    // два байта длины кадра
+    private static final int HEADER_SIZE = 2;
+
+    // сколько кадров отдавать в канал одной записью (gathering write)
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final Server server;
+    // недочитанный кадр в режиме записи, null - кадров на середине нет
+    private ByteBuffer partial;
+    private final OutboundQueue<Frame> outbound;
+    // кадры, отданные в канал, [gatherStart, gatherEnd) еще не записаны полностью
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final List<Frame> drained = new ArrayList<>(MAX_GATHER);
+    private int gatherStart;
+    private int gatherEnd;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private SelectionKey key;
+    private ClientHandler handler;
+
+    NioConnection(SocketChannel channel, NioEventLoop eventLoop, Server server) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.server = server;
+        ServerConfig config = server.getConfig();
+        this.outbound = new OutboundQueue<>(config.getOutboundQueueCapacity(), config.getOverflowPolicy(),
+                server.getDroppedMessages());
+    }
+
+    void attach(SelectionKey key, ClientHandler handler) {
+        this.key = key;
+        this.handler = handler;
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (closed.get()) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            server.getSlowConsumerDisconnects().increment();
+            throw new IOException("Клиент не успевает принимать сообщения, очередь переполнена");
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flush);
+        }
+    }
+
+    void onReadable() {
+        if (partial != null && partial.position() >= HEADER_SIZE) {
+            readPartial();
+            return;
+        }
+        ByteBuffer readBuffer = eventLoop.getReadBuffer();
+        readBuffer.clear();
+        if (partial != null) {
+            readBuffer.put(partial.flip());
+            partial = null;
+        }
+        if (!read(readBuffer)) {
+            return;
+        }
+
+        readBuffer.flip();
+        try {
+            while (!closed.get() && readBuffer.remaining() >= 2) {
+                int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+                if (readBuffer.remaining() < 2 + length) {
+                    break;
+                }
+                int offset = readBuffer.position() + 2;
+                readBuffer.position(offset + length);
+                if (!handler.handleFrame(readBuffer.array(), offset, length)) {
+                    handler.disconnect();
+                }
+            }
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+            handler.disconnect();
+        } catch (RuntimeException e) {
+            log.error("Ошибка при обработке сообщения", e);
+            handler.disconnect();
+        } finally {
+            if (!closed.get() && readBuffer.hasRemaining()) {
+                int size = readBuffer.remaining() >= HEADER_SIZE
+                        ? HEADER_SIZE + (readBuffer.getShort(readBuffer.position()) & 0xFFFF) : HEADER_SIZE;
+                partial = ByteBuffer.allocate(size).put(readBuffer);
+            }
+        }
+    }
+
+    // Длина кадра уже известна: дочитываем его в буфер соединения, ровно до конца кадра
+    private void readPartial() {
+        if (!read(partial)) {
+            return;
+        }
+        if (partial.hasRemaining()) {
+            return;
+        }
+        ByteBuffer frame = partial;
+        partial = null;
+        try {
+            if (!handler.handleFrame(frame.array(), HEADER_SIZE, frame.capacity() - HEADER_SIZE)) {
+                handler.disconnect();
+            }
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+            handler.disconnect();
+        } catch (RuntimeException e) {
+            log.error("Ошибка при обработке сообщения", e);
+            handler.disconnect();
+        }
+    }
+
+    // false - соединение закрыто
+    private boolean read(ByteBuffer buffer) {
+        try {
+            if (channel.read(buffer) < 0) {
+                log.warn("End of file reached");
+                handler.disconnect();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+            handler.disconnect();
+            return false;
+        }
+    }
+
+    // Все, что накопилось в очереди, уходит в канал пачками до MAX_GATHER кадров, каждая пачка - один write
+    void flush() {
+        flushScheduled.set(false);
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            while (gatherStart < gatherEnd || fillGather()) {
+                channel.write(gather, gatherStart, gatherEnd - gatherStart);
+                while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                    gather[gatherStart++] = null;
+                }
+                if (gatherStart < gatherEnd) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+            handler.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            outbound.close();
+            eventLoop.execute(this::closeNow);
+        }
+    }
+
+    private void closeNow() {
+        // отправляем то, что успели поставить в очередь до закрытия (например, сообщение о бане)
+        flush();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outbound.getDropped();
+    }
+
+    private boolean fillGather() {
+        gatherStart = 0;
+        gatherEnd = outbound.drainTo(drained, MAX_GATHER);
+        for (int i = 0; i < gatherEnd; i++) {
+            gather[i] = drained.get(i).buffer();
+        }
+        drained.clear();
+        return gatherEnd > 0;
+    }
+}
@@ -0,0 +1,126 @@
+package ru.project.chat.server.nio;
+
+import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.ClientHandler;
+import ru.project.chat.server.Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Поток с собственным Selector, обслуживающий часть подключений
+@Log4j2
+public class NioEventLoop implements Runnable {
+    private final Server server;
+    private final Selector selector;
+    // общий буфер чтения для всех соединений этого потока: кадр наибольшей длины помещается целиком
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(NioConnection.MAX_FRAME_SIZE);
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    NioEventLoop(Server server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Только для потока event loop: содержимое действительно до конца обработки события чтения
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    // Задачи выполняются в потоке event loop, только там можно трогать SelectionKey
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, server);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key, new ClientHandler(connection, server));
+            } catch (IOException e) {
+                log.warn(e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.warn(ex.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // задачи, поставленные из самого event loop, не должны ждать следующего события
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    processKey(key);
+                }
+                runTasks();
+            } catch (IOException e) {
+                log.error(e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (CancelledKeyException e) {
+            // соединение закрыли, пока обрабатывали событие
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Ошибка при выполнении задачи event loop", e);
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
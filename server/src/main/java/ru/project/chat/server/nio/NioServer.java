@@ -0,0 +1,70 @@
+package ru.project.chat.server.nio;
+
+import lombok.extern.log4j.Log4j2;
+import ru.project.chat.server.Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Неблокирующий прием подключений: соединения раздаются по кругу фиксированному пулу event loop
+@Log4j2
+public class NioServer {
+    private final Server server;
+    private final int port;
+    private final NioEventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+
+    public NioServer(Server server, int port, int threads) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.eventLoops = new NioEventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            eventLoops[i] = new NioEventLoop(server, "nio-event-loop-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        log.info("Сервер (NIO, потоков: " + eventLoops.length + ") запущен на порту " + port);
+
+        int next = 0;
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                // ошибка одного соединения (например, клиент сбросил его сразу после подключения)
+                // не должна останавливать прием остальных
+                try {
+                    server.configureSocket(channel.socket());
+                } catch (IOException e) {
+                    log.warn("Не удалось принять подключение: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        log.warn(ex.getMessage());
+                    }
+                    continue;
+                }
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (ClosedChannelException e) {
+            log.info("Прием подключений остановлен");
+        }
+    }
+
+    public void close() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ru.project.chat.server.tools;
+
+import ru.project.chat.server.InMemoryAuthenticationProvider;
+import ru.project.chat.server.Server;
+import ru.project.chat.server.ServerConfig;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Сравнение режимов обработки подключений на большом числе простаивающих клиентов.
+// Поднимает сервер в этом же процессе с InMemoryAuthenticationProvider, подключает N клиентов
+// (каждый выполняет /register и ждет приветствия) и печатает число потоков, RSS процесса
+// и задержку от подключения до приветствия.
+// Запуск: java -cp ... ru.project.chat.server.tools.IdleConnectionsProbe virtual 10000 18080
+// На 10 000 подключений нужен лимит открытых файлов не меньше 20 000 (ulimit -n)
+public class IdleConnectionsProbe {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "blocking";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 18080;
+
+        Properties overrides = new Properties();
+        overrides.setProperty("server.mode", mode);
+        overrides.setProperty("server.port", String.valueOf(port));
+        // замеряются соединения, а не вход: хэш пароля с малым числом итераций
+        Server server = new Server(ServerConfig.load(overrides), new InMemoryAuthenticationProvider(1_000));
+        Thread serverThread = new Thread(server::start, "probe-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000L);
+
+        long threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rssBefore = readRssKb();
+
+        // Все входящие сообщения (например, "вошел в чат") читаем одним потоком, иначе заполнятся буферы сокетов
+        Drainer drainer = new Drainer();
+        Thread drainerThread = new Thread(drainer, "probe-drainer");
+        drainerThread.setDaemon(true);
+        drainerThread.start();
+
+        long[] latencies = new long[connections];
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            long connectedAt = System.nanoTime();
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            new DataOutputStream(Channels.newOutputStream(channel)).writeUTF("/register probe" + i + " probe" + i + " pass");
+            new DataInputStream(Channels.newInputStream(channel)).readUTF();
+            latencies[i] = System.nanoTime() - connectedAt;
+            drainer.add(channel);
+        }
+        long elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+
+        Thread.sleep(5000L);
+        System.gc();
+        Thread.sleep(1000L);
+
+        Arrays.sort(latencies);
+        System.out.println("Режим: " + mode + ", подключений: " + connections + ", за " + elapsedMillis + " мс");
+        System.out.println("Потоков JVM: " + threadsBefore + " -> " + ManagementFactory.getThreadMXBean().getThreadCount());
+        System.out.println("RSS, КБ: " + rssBefore + " -> " + readRssKb());
+        System.out.println("Подключение -> приветствие, мкс: p50=" + percentile(latencies, 0.50)
+                + " p99=" + percentile(latencies, 0.99)
+                + " max=" + latencies[latencies.length - 1] / 1000);
+        System.exit(0);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1000;
+    }
+
+    // RSS читается из /proc, поэтому замер работает только на Linux
+    private static long readRssKb() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        }
+        return -1;
+    }
+
+    private static class Drainer implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        Drainer() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ);
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                            key.cancel();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
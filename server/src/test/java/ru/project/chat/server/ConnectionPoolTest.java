@@ -0,0 +1,141 @@
+package ru.project.chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionPoolTest {
+    // база в памяти живет, пока открыто хотя бы одно соединение; DB_CLOSE_DELAY держит ее до конца JVM
+    private static final String URL = "jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1";
+
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        pool = new ConnectionPool(URL, "sa", "", 0, 2, 60_000L, 200L, 1_000L, 1, 8);
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS item (id INT PRIMARY KEY)");
+            statement.execute("DELETE FROM item");
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+    }
+
+    private static int countItems(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM item")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    void closedConnectionReturnsToPool() throws SQLException {
+        for (int i = 0; i < 5; i++) {
+            try (Connection connection = pool.getConnection()) {
+                assertEquals(0, countItems(connection));
+            }
+        }
+        assertEquals(1, pool.getTotalConnections());
+        assertEquals(1, pool.getIdleConnections());
+        // плюс выдача в setUp
+        assertEquals(6, pool.getBorrowCount());
+    }
+
+    @Test
+    void leaseCannotBeUsedAfterClose() throws SQLException {
+        Connection connection = pool.getConnection();
+        connection.close();
+        assertTrue(connection.isClosed());
+        assertThrows(SQLException.class, connection::createStatement);
+        // повторный close не возвращает соединение второй раз
+        connection.close();
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    @Test
+    void preparedStatementIsReused() throws SQLException {
+        String sql = "INSERT INTO item (id) VALUES (?)";
+        PreparedStatement first;
+        try (Connection connection = pool.getConnection(); PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setInt(1, 1);
+            statement.executeUpdate();
+            first = statement.unwrap(PreparedStatement.class);
+        }
+        try (Connection connection = pool.getConnection(); PreparedStatement statement = connection.prepareStatement(sql)) {
+            assertSame(first, statement.unwrap(PreparedStatement.class));
+            assertFalse(first.isClosed());
+            statement.setInt(1, 2);
+            statement.executeUpdate();
+            assertEquals(2, countItems(connection));
+        }
+    }
+
+    @Test
+    void uncommittedTransactionIsRolledBackOnReturn() throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("INSERT INTO item (id) VALUES (1)");
+            }
+        }
+        try (Connection connection = pool.getConnection()) {
+            assertTrue(connection.getAutoCommit());
+            assertEquals(0, countItems(connection));
+        }
+    }
+
+    @Test
+    void borrowTimesOutWhenPoolIsExhausted() throws SQLException {
+        try (Connection first = pool.getConnection(); Connection second = pool.getConnection()) {
+            assertEquals(2, pool.getTotalConnections());
+            assertThrows(SQLException.class, pool::getConnection);
+        }
+        assertEquals(0, pool.getWaitCount());
+        assertEquals(2, pool.getIdleConnections());
+    }
+
+    @Test
+    void waitingBorrowGetsReleasedConnection() throws Exception {
+        Connection first = pool.getConnection();
+        Connection second = pool.getConnection();
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                first.close();
+            } catch (InterruptedException | SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        releaser.start();
+        try (Connection third = pool.getConnection()) {
+            assertEquals(0, countItems(third));
+        }
+        releaser.join();
+        second.close();
+        assertEquals(2, pool.getTotalConnections());
+        assertEquals(1, pool.getWaitCount());
+    }
+
+    @Test
+    void closedPoolRejectsBorrow() {
+        pool.close();
+        assertThrows(SQLException.class, pool::getConnection);
+        assertEquals(0, pool.getTotalConnections());
+    }
+}
@@ -0,0 +1,68 @@
+package ru.project.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FrameBuilderTest {
+
+    // Кадр читается клиентом так же, как Network: DataInputStream.readUTF
+    private static String readUtf(Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out);
+        return new DataInputStream(new ByteArrayInputStream(out.toByteArray())).readUTF();
+    }
+
+    private static String appendUtf8(byte[] field) throws IOException {
+        return readUtf(new FrameBuilder().reset().append("user: ").appendUtf8(field, 0, field.length).build());
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    void validUtf8IsCopied() throws IOException {
+        String text = "привет, мир! €";
+        assertEquals("user: " + text, appendUtf8(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void nulAndSupplementaryCharactersAreReencoded() throws IOException {
+        String text = "a\u0000b 😀";
+        assertEquals("user: " + text, appendUtf8(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void malformedBytesAreReplaced() throws IOException {
+        byte[][] malformed = {
+                bytes(0xFF),
+                bytes('a', 0x80, 'b'),
+                // длинные формы
+                bytes(0xC0, 0x80),
+                bytes(0xC1, 0xBF),
+                bytes(0xE0, 0x80, 0x80),
+                // последовательность оборвана
+                bytes(0xE2, 0x82),
+                bytes('x', 0xD0),
+                // суррогат
+                bytes(0xED, 0xA0, 0x80),
+                // за пределами Unicode
+                bytes(0xF4, 0x90, 0x80, 0x80),
+                bytes(0xF8, 0x88, 0x80, 0x80, 0x80),
+        };
+        for (byte[] field : malformed) {
+            assertEquals("user: " + new String(field, StandardCharsets.UTF_8), appendUtf8(field));
+        }
+    }
+}
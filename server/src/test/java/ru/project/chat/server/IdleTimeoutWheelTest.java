@@ -0,0 +1,118 @@
+package ru.project.chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdleTimeoutWheelTest {
+    private static final long TIMEOUT_MILLIS = 100;
+    private static final long TICK_MILLIS = 10;
+
+    private final LongAdder expired = new LongAdder();
+    private IdleTimeoutWheel wheel;
+
+    @BeforeEach
+    void setUp() {
+        wheel = new IdleTimeoutWheel(TIMEOUT_MILLIS, TICK_MILLIS, expired);
+        wheel.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        wheel.close();
+    }
+
+    private static class TestSession implements IdleTimeoutWheel.Session {
+        private final CountDownLatch disconnected = new CountDownLatch(1);
+        private volatile long lastActivityTime = System.currentTimeMillis();
+        private volatile boolean connected = true;
+        private volatile int disconnects;
+
+        void touch() {
+            lastActivityTime = System.currentTimeMillis();
+        }
+
+        boolean awaitDisconnect(long millis) throws InterruptedException {
+            return disconnected.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long getLastActivityTime() {
+            return lastActivityTime;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public String getNickname() {
+            return "test";
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+            disconnects++;
+            disconnected.countDown();
+        }
+    }
+
+    @Test
+    void idleSessionIsDisconnectedAfterTimeout() throws InterruptedException {
+        TestSession session = new TestSession();
+        long start = System.currentTimeMillis();
+        IdleTimeoutWheel.Timeout timeout = wheel.register(session);
+        assertTrue(session.awaitDisconnect(2_000));
+        assertTrue(System.currentTimeMillis() - start >= TIMEOUT_MILLIS);
+        assertEquals(1, session.disconnects);
+        assertEquals(1, expired.sum());
+        // после отключения колесо сессию не держит
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    void activeSessionIsRescheduled() throws InterruptedException {
+        TestSession session = new TestSession();
+        wheel.register(session);
+        long until = System.currentTimeMillis() + 3 * TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < until) {
+            session.touch();
+            Thread.sleep(TICK_MILLIS);
+        }
+        assertEquals(0, session.disconnects);
+        assertTrue(session.awaitDisconnect(2_000));
+    }
+
+    @Test
+    void cancelledSessionIsReleasedAndCanBeRegisteredAgain() throws InterruptedException {
+        TestSession session = new TestSession();
+        IdleTimeoutWheel.Timeout timeout = wheel.register(session);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+        assertFalse(session.awaitDisconnect(3 * TIMEOUT_MILLIS));
+
+        session.touch();
+        IdleTimeoutWheel.Timeout again = wheel.register(session);
+        assertFalse(again.isCancelled());
+        assertTrue(session.awaitDisconnect(2_000));
+        assertEquals(1, session.disconnects);
+    }
+
+    @Test
+    void invalidArgumentsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new IdleTimeoutWheel(0, 10, expired));
+        assertThrows(IllegalArgumentException.class, () -> new IdleTimeoutWheel(100, 0, expired));
+        assertThrows(IllegalArgumentException.class, () -> new IdleTimeoutWheel(10_000_000, 1, expired));
+    }
+}
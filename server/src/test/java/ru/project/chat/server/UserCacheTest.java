@@ -0,0 +1,67 @@
+package ru.project.chat.server;
+
+import org.junit.jupiter.api.Test;
+import ru.project.chat.server.model.Role;
+import ru.project.chat.server.model.RoleName;
+import ru.project.chat.server.model.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserCacheTest {
+    private static final Role ROLE = new Role(2, RoleName.USER);
+
+    private static User user(int i) {
+        return new User("login" + i, "hash", "nick" + i, ROLE);
+    }
+
+    @Test
+    void leastRecentlyUsedUserIsEvicted() {
+        UserCache cache = new UserCache(3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cache.add(user(i)));
+        }
+        // обращения к login0 больше, чем помещается до разбора буфера
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(cache.getByLogin("login0"));
+        }
+        assertTrue(cache.add(user(3)));
+        assertEquals(3, cache.size());
+        assertNotNull(cache.getByLogin("login0"));
+        assertNull(cache.getByLogin("login1"));
+        assertNull(cache.getByNickname("nick1"));
+    }
+
+    // Обращения из нескольких потоков во время вытеснения: размер не превышает предел,
+    // а индексы по логину и нику не расходятся
+    @Test
+    void concurrentLookupsKeepCacheBounded() throws InterruptedException {
+        int maxSize = 100;
+        UserCache cache = new UserCache(maxSize);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int first = t * 1_000;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = first; i < first + 1_000; i++) {
+                    cache.add(user(i));
+                    cache.getByLogin("login" + ThreadLocalRandom.current().nextInt(4_000));
+                    cache.getByNickname("nick" + i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(maxSize, cache.size());
+        for (User user : cache.values()) {
+            assertSame(user, cache.getByNickname(user.getNickname()));
+        }
+    }
+}
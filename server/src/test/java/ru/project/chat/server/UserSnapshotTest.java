@@ -0,0 +1,119 @@
+package ru.project.chat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.project.chat.server.model.Role;
+import ru.project.chat.server.model.RoleName;
+import ru.project.chat.server.model.User;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// read() == null - провайдер загружает кэш из базы, поэтому поврежденный снимок должен давать null, а не исключение
+// или частично прочитанных пользователей
+class UserSnapshotTest {
+    private static final Role ADMIN = new Role(1, RoleName.ADMIN);
+    private static final Role USER = new Role(2, RoleName.USER);
+
+    @TempDir
+    Path directory;
+
+    private static User user(String login, String nickname, LocalDateTime start, LocalDateTime end, Set<Role> roles) {
+        User user = new User();
+        user.setLogin(login);
+        user.setPassword("pbkdf2$" + login);
+        user.setNickname(nickname);
+        user.setStartBanDateTime(start);
+        user.setEndBanDateTime(end);
+        user.setRoles(roles);
+        return user;
+    }
+
+    private static List<User> users() {
+        LocalDateTime banStart = LocalDateTime.of(2024, 3, 1, 12, 30, 15, 123_000_000);
+        return List.of(
+                user("admin", "Админ", null, null, Set.of(ADMIN, USER)),
+                user("user1", "user1", banStart, banStart.plusMinutes(10), Set.of(USER)),
+                user("user2", "user2", banStart, LocalDateTime.MAX, Set.of(USER)));
+    }
+
+    private UserSnapshot writeSnapshot() throws IOException {
+        UserSnapshot snapshot = new UserSnapshot(directory.resolve("users.snapshot"));
+        snapshot.write(users(), List.of(ADMIN, USER), 1_700_000_000_000L);
+        return snapshot;
+    }
+
+    @Test
+    void snapshotIsReadBackAsWritten() throws IOException {
+        UserSnapshot snapshot = writeSnapshot();
+        UserSnapshot.Loaded loaded = snapshot.read();
+        assertNotNull(loaded);
+        assertEquals(1_700_000_000_000L, loaded.watermark());
+        assertEquals(Map.of(1, ADMIN, 2, USER), loaded.roles());
+        List<User> expected = users();
+        assertEquals(expected.size(), loaded.users().size());
+        for (int i = 0; i < expected.size(); i++) {
+            User user = expected.get(i);
+            User read = loaded.users().get(i);
+            assertEquals(user.getLogin(), read.getLogin());
+            assertEquals(user.getPassword(), read.getPassword());
+            assertEquals(user.getNickname(), read.getNickname());
+            assertEquals(user.getStartBanDateTime(), read.getStartBanDateTime());
+            assertEquals(user.getEndBanDateTime(), read.getEndBanDateTime());
+            assertEquals(user.getRoles(), read.getRoles());
+        }
+        // в снимке пароли, файл доступен только владельцу
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(snapshot.getFile()));
+    }
+
+    @Test
+    void rewriteReplacesSnapshotWithoutTemporaryFiles() throws IOException {
+        UserSnapshot snapshot = writeSnapshot();
+        snapshot.write(List.of(), List.of(USER), 42);
+        UserSnapshot.Loaded loaded = snapshot.read();
+        assertNotNull(loaded);
+        assertEquals(42, loaded.watermark());
+        assertEquals(0, loaded.users().size());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of(snapshot.getFile()), files.toList());
+        }
+    }
+
+    @Test
+    void missingSnapshotFallsBackToDatabase() {
+        assertNull(new UserSnapshot(directory.resolve("missing.snapshot")).read());
+    }
+
+    @Test
+    void truncatedSnapshotFallsBackToDatabase() throws IOException {
+        UserSnapshot snapshot = writeSnapshot();
+        long size = Files.size(snapshot.getFile());
+        for (long truncated : new long[]{size - 1, size / 2, 4, 0}) {
+            try (RandomAccessFile file = new RandomAccessFile(snapshot.getFile().toFile(), "rw")) {
+                file.setLength(truncated);
+            }
+            assertNull(snapshot.read(), "размер " + truncated);
+        }
+    }
+
+    @Test
+    void corruptedSnapshotFallsBackToDatabase() throws IOException {
+        UserSnapshot snapshot = writeSnapshot();
+        byte[] bytes = Files.readAllBytes(snapshot.getFile());
+        bytes[bytes.length / 2] ^= 0x5A;
+        Files.write(snapshot.getFile(), bytes);
+        assertNull(snapshot.read());
+    }
+}
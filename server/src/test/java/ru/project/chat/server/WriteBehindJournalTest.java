@@ -0,0 +1,182 @@
+package ru.project.chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteBehindJournalTest {
+    private static final String INSERT = "INSERT INTO item (id, v) VALUES (?, ?)";
+    private static final String UPDATE = "UPDATE item SET v = ? WHERE id = ?";
+    // база недоступна: поток записи ждет перед повтором, пока его не остановят
+    private static final WriteBehindJournal.ConnectionSource UNAVAILABLE = () -> {
+        throw new SQLException("База недоступна");
+    };
+
+    @TempDir
+    Path directory;
+
+    private Path journalFile;
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        journalFile = directory.resolve("journal");
+        pool = new ConnectionPool("jdbc:h2:mem:journal;DB_CLOSE_DELAY=-1", "sa", "", 0, 4, 60_000L, 1_000L,
+                1_000L, 1, 8);
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS item (id INT PRIMARY KEY, v INT)");
+            statement.execute("DELETE FROM item");
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+    }
+
+    private WriteBehindJournal open(WriteBehindJournal.ConnectionSource source) {
+        return new WriteBehindJournal(journalFile, source, 100, 60_000L, 2);
+    }
+
+    private Integer value(int id) throws SQLException {
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT v FROM item WHERE id = " + id)) {
+            return rs.next() ? rs.getInt(1) : null;
+        }
+    }
+
+    private int count() throws SQLException {
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM item")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private long checkpoint() throws IOException {
+        return Long.parseLong(Files.readString(Path.of(journalFile + ".checkpoint")).trim());
+    }
+
+    @Test
+    void changesReachDatabaseAndJournalIsCompacted() throws Exception {
+        WriteBehindJournal journal = open(pool::getConnection);
+        journal.append(INSERT, 1, 10);
+        journal.append(UPDATE, 11, 1);
+        journal.flush(5_000);
+        assertEquals(11, value(1));
+        assertFalse(journal.hasUnprocessed());
+        journal.close(5_000);
+        assertEquals(2, checkpoint());
+        // все изменения в базе, в журнале ничего не осталось
+        assertEquals(0, Files.size(journalFile));
+    }
+
+    @Test
+    void unprocessedChangesAreReplayedAfterCrash() throws Exception {
+        WriteBehindJournal crashed = open(UNAVAILABLE);
+        crashed.append(INSERT, 1, 10);
+        crashed.append(INSERT, 2, 20);
+        crashed.append(UPDATE, 11, 1);
+        crashed.halt();
+        assertEquals(0, count());
+
+        WriteBehindJournal journal = open(pool::getConnection);
+        assertEquals(11, value(1));
+        assertEquals(20, value(2));
+        assertEquals(3, checkpoint());
+        // нумерация продолжается после повторенных изменений
+        assertEquals(3, journal.getLastSeq());
+        journal.append(UPDATE, 12, 1);
+        journal.flush(5_000);
+        assertEquals(12, value(1));
+        journal.close(5_000);
+        assertEquals(4, checkpoint());
+    }
+
+    @Test
+    void checkpointedChangesAreNotReplayed() throws Exception {
+        WriteBehindJournal crashed = open(UNAVAILABLE);
+        crashed.append(INSERT, 1, 10);
+        crashed.append(INSERT, 2, 20);
+        crashed.append(INSERT, 3, 30);
+        crashed.halt();
+        // первые два изменения попали в базу до сбоя и успели отметиться в checkpoint
+        Files.writeString(Path.of(journalFile + ".checkpoint"), "2");
+
+        WriteBehindJournal journal = open(pool::getConnection);
+        assertNull(value(1));
+        assertNull(value(2));
+        assertEquals(30, value(3));
+        journal.close(5_000);
+    }
+
+    @Test
+    void tornLastRecordIsIgnored() throws Exception {
+        WriteBehindJournal crashed = open(UNAVAILABLE);
+        crashed.append(INSERT, 1, 10);
+        crashed.append(INSERT, 2, 20);
+        crashed.halt();
+        // сбой посреди записи следующего изменения
+        Files.write(journalFile, new byte[]{0, 0, 0, 0, 0}, StandardOpenOption.APPEND);
+
+        WriteBehindJournal journal = open(pool::getConnection);
+        assertEquals(10, value(1));
+        assertEquals(20, value(2));
+        assertEquals(2, journal.getLastSeq());
+        journal.close(5_000);
+    }
+
+    @Test
+    void changeThatAffectsNoRowsIsReported() throws Exception {
+        WriteBehindJournal journal = open(pool::getConnection);
+        CountDownLatch skipped = new CountDownLatch(1);
+        journal.append(INSERT, 1, 10);
+        journal.append(skipped::countDown, UPDATE, 20, 2);
+        assertTrue(skipped.await(5, TimeUnit.SECONDS));
+        journal.close(5_000);
+    }
+
+    @Test
+    void concurrentAppendsAreAllWritten() throws Exception {
+        WriteBehindJournal journal = open(pool::getConnection);
+        int threads = 4;
+        int perThread = 250;
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            Thread writer = new Thread(() -> {
+                for (int i = first; i < first + perThread; i++) {
+                    journal.append(INSERT, i, i);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        journal.flush(10_000);
+        assertEquals(threads * perThread, count());
+        assertEquals(threads * perThread, journal.getLastSeq());
+        journal.close(5_000);
+    }
+}
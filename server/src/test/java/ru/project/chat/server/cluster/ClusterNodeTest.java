@@ -0,0 +1,203 @@
+package ru.project.chat.server.cluster;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import ru.project.chat.server.InMemoryAuthenticationProvider;
+import ru.project.chat.server.Server;
+import ru.project.chat.server.ServerConfig;
+import ru.project.chat.server.metrics.ServerMetrics;
+
+import javax.management.ObjectName;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+// Два узла в одном процессе, соединенные через localhost. Серверы не останавливаются: shutdownServer
+// завершает процесс, а все их потоки - демоны
+class ClusterNodeTest {
+    private static final String SECRET = "test-secret";
+    private static final long TIMEOUT_MILLIS = 10_000L;
+
+    private static Server node1;
+    private static Server node2;
+    private static int clientPort1;
+    private static int clientPort2;
+    private static int clusterPort1;
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        clientPort1 = freePort();
+        clientPort2 = freePort();
+        clusterPort1 = freePort();
+        int clusterPort2 = freePort();
+        node1 = startNode("node1", clientPort1, clusterPort1, "node2@127.0.0.1:" + clusterPort2);
+        node2 = startNode("node2", clientPort2, clusterPort2, "node1@127.0.0.1:" + clusterPort1);
+        await(() -> node1.getCluster() != null && node1.getCluster().getConnectedPeers() == 1
+                && node2.getCluster() != null && node2.getCluster().getConnectedPeers() == 1);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Server startNode(String name, int port, int clusterPort, String peers) {
+        Properties properties = new Properties();
+        properties.setProperty("server.mode", "blocking");
+        properties.setProperty("server.port", String.valueOf(port));
+        properties.setProperty("server.history.enabled", "false");
+        properties.setProperty("server.ratelimit.enabled", "false");
+        properties.setProperty("server.cluster.node", name);
+        properties.setProperty("server.cluster.port", String.valueOf(clusterPort));
+        properties.setProperty("server.cluster.peers", peers);
+        properties.setProperty("server.cluster.secret", SECRET);
+        properties.setProperty("server.cluster.reconnect.millis", "100");
+        Server server = new Server(ServerConfig.load(properties), new InMemoryAuthenticationProvider(1000));
+        Thread thread = new Thread(server::start, "test-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Условие не выполнилось за " + TIMEOUT_MILLIS + " мс");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static class Client implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(socket.getOutputStream());
+        }
+
+        void send(String message) throws IOException {
+            out.writeUTF(message);
+            out.flush();
+        }
+
+        // Пропускает сообщения, пока не придет содержащее text
+        String expect(String text) throws IOException {
+            while (true) {
+                String message = in.readUTF();
+                if (message.contains(text)) {
+                    return message;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    void messagesAndPrivateMessagesCrossNodes() throws Exception {
+        try (Client alice = new Client(clientPort1); Client bob = new Client(clientPort2)) {
+            alice.send("/register alice alice pw");
+            alice.expect("alice, добро пожаловать в чат!");
+            bob.send("/register bob bob pw");
+            bob.expect("bob, добро пожаловать в чат!");
+            await(() -> node1.getCluster().isRemoteUser("bob") && node2.getCluster().isRemoteUser("alice"));
+
+            alice.send("привет с первого узла");
+            bob.expect("привет с первого узла");
+            bob.send("/w alice лично для alice");
+            alice.expect("лично для alice");
+            assertTrue(node1.getUserList().contains("bob"));
+        }
+    }
+
+    @Test
+    void loginActiveOnOtherNodeIsRejected() throws Exception {
+        try (Client first = new Client(clientPort1); Client second = new Client(clientPort2)) {
+            first.send("/register carol carol pw");
+            first.expect("carol, добро пожаловать в чат!");
+            await(() -> node2.getCluster().isRemoteUser("carol"));
+
+            // у каждого узла в тесте свои пользователи, поэтому регистрация на втором узле проходит
+            second.send("/register carol carol pw");
+            second.expect("carol уже в чате на другом сервере");
+            assertFalse(node2.getLocalUsers().contains("carol"));
+            assertTrue(node1.getLocalUsers().contains("carol"));
+        }
+    }
+
+    @Test
+    void peerWithWrongSecretIsRejected() throws Exception {
+        ClusterHandshake wrong = new ClusterHandshake("wrong-secret");
+        try (Socket socket = new Socket("127.0.0.1", clusterPort1)) {
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            ClusterMessage challenge = ClusterMessage.read(in);
+            assertEquals(ClusterMessage.CHALLENGE, challenge.type);
+            out.write(ClusterMessage.encode(ClusterMessage.HELLO, null,
+                    "node2", wrong.newNonce(), wrong.helloProof(challenge.fields[0], "node2")));
+            out.write(ClusterMessage.encode(ClusterMessage.JOIN, null, "mallory"));
+            out.flush();
+            assertThrows(EOFException.class, () -> ClusterMessage.read(in));
+        }
+        assertFalse(node1.getCluster().isRemoteUser("mallory"));
+    }
+
+    @Test
+    void unknownPeerIsRejected() throws Exception {
+        ClusterHandshake handshake = new ClusterHandshake(SECRET);
+        try (Socket socket = new Socket("127.0.0.1", clusterPort1)) {
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            ClusterMessage challenge = ClusterMessage.read(in);
+            out.write(ClusterMessage.encode(ClusterMessage.HELLO, null,
+                    "node3", handshake.newNonce(), handshake.helloProof(challenge.fields[0], "node3")));
+            out.flush();
+            assertThrows(EOFException.class, () -> ClusterMessage.read(in));
+        } catch (SocketTimeoutException e) {
+            fail("Соединение неизвестного узла не закрыто");
+        }
+    }
+
+    @Test
+    void eachNodeHasItsOwnMetrics() throws Exception {
+        assertNotSame(node1.getMetrics(), node2.getMetrics());
+        await(() -> isRegistered("type=Server,node=node1") && isRegistered("type=Server,node=node2")
+                && isRegistered("type=Latency,node=node1,name=auth")
+                && isRegistered("type=Latency,node=node2,name=auth"));
+    }
+
+    private static boolean isRegistered(String properties) {
+        try {
+            return ManagementFactory.getPlatformMBeanServer()
+                    .isRegistered(new ObjectName(ServerMetrics.DOMAIN + ":" + properties));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ru.project.chat.server.history;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.project.chat.server.Frame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryLogTest {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    // запись "message N" занимает около 20 байт, в сегмент помещается три
+    private static final int SMALL_SEGMENT_BYTES = 64;
+
+    @TempDir
+    Path directory;
+
+    private static List<String> messages(HistoryLog.Replay replay) throws IOException {
+        List<String> messages = new ArrayList<>();
+        if (replay.frame() == null) {
+            return messages;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        replay.frame().writeTo(out);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        while (in.available() > 0) {
+            messages.add(in.readUTF());
+        }
+        return messages;
+    }
+
+    private static List<String> range(int from, int to) {
+        List<String> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add("message " + i);
+        }
+        return messages;
+    }
+
+    private static void appendMessages(HistoryLog history, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            assertEquals(i, history.append(Frame.of("message " + i), null));
+        }
+    }
+
+    private int segmentFiles() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "history-*.log")) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void messagesAreRecoveredAfterRestart() throws IOException {
+        HistoryLog history = new HistoryLog(directory, 4096, 1 << 20, DAY_MILLIS);
+        appendMessages(history, 0, 5);
+        history.close();
+
+        HistoryLog reopened = new HistoryLog(directory, 4096, 1 << 20, DAY_MILLIS);
+        assertEquals(5, reopened.getAppendSeq());
+        assertEquals(range(0, 5), messages(reopened.replay("alice", 10, 5)));
+        // нумерация продолжается с места остановки
+        appendMessages(reopened, 5, 7);
+        assertEquals(range(0, 7), messages(reopened.replay("alice", 10, 7)));
+        reopened.close();
+    }
+
+    @Test
+    void replayReturnsLatestMessagesUpToSeq() throws IOException {
+        HistoryLog history = new HistoryLog(directory, 4096, 1 << 20, DAY_MILLIS);
+        appendMessages(history, 0, 10);
+        HistoryLog.Replay replay = history.replay("alice", 3, 8);
+        assertEquals(8, replay.upToSeq());
+        assertEquals(range(5, 8), messages(replay));
+        history.close();
+    }
+
+    @Test
+    void segmentsRollOverAndAreRecoveredInOrder() throws IOException {
+        HistoryLog history = new HistoryLog(directory, SMALL_SEGMENT_BYTES, 1 << 20, DAY_MILLIS);
+        appendMessages(history, 0, 10);
+        assertEquals(range(0, 10), messages(history.replay("alice", 20, 10)));
+        assertTrue(segmentFiles() > 1);
+        history.close();
+
+        HistoryLog reopened = new HistoryLog(directory, SMALL_SEGMENT_BYTES, 1 << 20, DAY_MILLIS);
+        assertEquals(10, reopened.getAppendSeq());
+        assertEquals(range(0, 10), messages(reopened.replay("alice", 20, 10)));
+        reopened.close();
+    }
+
+    // История больше maxBytes: старые сегменты удаляются при переходе на новый
+    @Test
+    void oldestSegmentsAreDeletedOverMaxBytes() throws IOException {
+        HistoryLog history = new HistoryLog(directory, SMALL_SEGMENT_BYTES, 2 * SMALL_SEGMENT_BYTES, DAY_MILLIS);
+        appendMessages(history, 0, 20);
+        List<String> replayed = messages(history.replay("alice", 20, 20));
+        assertEquals(2, segmentFiles());
+        assertTrue(replayed.size() < 20);
+        assertEquals(range(20 - replayed.size(), 20), replayed);
+        history.close();
+    }
+
+    @Test
+    void expiredSegmentsAreDeleted() throws Exception {
+        HistoryLog history = new HistoryLog(directory, SMALL_SEGMENT_BYTES, 1 << 20, 50);
+        appendMessages(history, 0, 6);
+        history.replay("alice", 0, 6);
+        Thread.sleep(100);
+        // переход на новый сегмент проверяет срок хранения
+        appendMessages(history, 6, 9);
+        List<String> replayed = messages(history.replay("alice", 20, 9));
+        assertEquals(1, segmentFiles());
+        assertEquals(range(9 - replayed.size(), 9), replayed);
+        history.close();
+    }
+
+    @Test
+    void privateMessagesAreReplayedOnlyToAudience() throws IOException {
+        HistoryLog history = new HistoryLog(directory, 4096, 1 << 20, DAY_MILLIS);
+        history.append(Frame.of("для всех"), null);
+        history.append(Frame.of("alice -> bob"), List.of("alice", "bob"));
+        history.append(Frame.of("carol -> carol"), List.of("carol"));
+        assertEquals(List.of("для всех", "alice -> bob"), messages(history.replay("bob", 10, 3)));
+        assertEquals(List.of("для всех", "carol -> carol"), messages(history.replay("carol", 10, 3)));
+        history.close();
+
+        HistoryLog reopened = new HistoryLog(directory, 4096, 1 << 20, DAY_MILLIS);
+        assertEquals(List.of("для всех", "alice -> bob"), messages(reopened.replay("alice", 10, 3)));
+        assertEquals(List.of("для всех"), messages(reopened.replay("dave", 10, 3)));
+        // логин сравнивается целиком, а не по префиксу
+        assertEquals(List.of("для всех"), messages(reopened.replay("ali", 10, 3)));
+        assertNull(reopened.replay("dave", 0, 3).frame());
+        reopened.close();
+    }
+}